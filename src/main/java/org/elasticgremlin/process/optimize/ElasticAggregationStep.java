@@ -0,0 +1,60 @@
+package org.elasticgremlin.process.optimize;
+
+import org.apache.tinkerpop.gremlin.process.traversal.*;
+import org.apache.tinkerpop.gremlin.process.traversal.step.Profiling;
+import org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.GraphStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.AbstractStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.*;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.queryhandler.*;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticMetrics;
+
+public abstract class ElasticAggregationStep<S extends Element, E> extends AbstractStep<S, E> implements Profiling {
+    private static final long serialVersionUID = 1L;
+
+    protected final Class<S> returnClass;
+    protected final Predicates predicates;
+    protected final AggregationHandler aggregationHandler;
+    private boolean done = false;
+    private MutableMetrics metrics;
+
+    public ElasticAggregationStep(GraphStep<S> originalStep, Predicates predicates, AggregationHandler aggregationHandler) {
+        super(originalStep.getTraversal());
+        this.returnClass = originalStep.getReturnClass();
+        this.predicates = predicates;
+        this.aggregationHandler = aggregationHandler;
+    }
+
+    protected abstract E aggregate();
+
+    protected boolean returnsVertex() {
+        return Vertex.class.isAssignableFrom(returnClass);
+    }
+
+    @Override
+    protected Traverser<E> processNextStart() {
+        if (done) throw FastNoSuchElementException.instance();
+        done = true;
+        MutableMetrics previous = ElasticMetrics.enter(metrics);
+        try {
+            // the aggregate starts its traverser at this step, like the graph step it replaced
+            @SuppressWarnings("unchecked")
+            Step<E, ?> step = (Step<E, ?>) (Step<?, ?>) this;
+            return TraversalHelper.getRootTraversal(this.getTraversal()).getTraverserGenerator().generate(aggregate(), step, 1L);
+        }
+        finally {
+            ElasticMetrics.exit(previous);
+        }
+    }
+
+    @Override
+    public void setMetrics(MutableMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        done = false;
+    }
+}
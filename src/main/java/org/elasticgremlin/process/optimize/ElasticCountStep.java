@@ -0,0 +1,25 @@
+package org.elasticgremlin.process.optimize;
+
+import org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.GraphStep;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.util.StringFactory;
+import org.elasticgremlin.queryhandler.*;
+
+public class ElasticCountStep<S extends Element> extends ElasticAggregationStep<S, Long> {
+    private static final long serialVersionUID = 1L;
+
+    public ElasticCountStep(GraphStep<S> originalStep, Predicates predicates, AggregationHandler aggregationHandler) {
+        super(originalStep, predicates, aggregationHandler);
+    }
+
+    @Override
+    protected Long aggregate() {
+        long count = returnsVertex() ? aggregationHandler.vertexCount(predicates) : aggregationHandler.edgeCount(predicates);
+        return Math.max(0, Math.min(count, predicates.limitHigh) - predicates.limitLow);
+    }
+
+    @Override
+    public String toString() {
+        return StringFactory.stepString(this, returnClass.getSimpleName().toLowerCase(), predicates.hasContainers, predicates.boolContainers);
+    }
+}
@@ -1,24 +1,41 @@
 package org.elasticgremlin.process.optimize;
 
+import org.apache.tinkerpop.gremlin.process.traversal.step.Profiling;
 import org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.GraphStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.MutableMetrics;
 import org.apache.tinkerpop.gremlin.structure.*;
+import org.apache.tinkerpop.gremlin.structure.util.StringFactory;
 import org.elasticgremlin.queryhandler.*;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticMetrics;
 
-import java.util.Iterator;
+import java.util.*;
 
-public class ElasticGraphStep<E extends Element> extends GraphStep<E> {
+public class ElasticGraphStep<E extends Element> extends GraphStep<E> implements Profiling {
+    private static final long serialVersionUID = 1L;
 
     private final Predicates predicates;
     private final QueryHandler queryHandler;
+    private MutableMetrics metrics;
+    private Iterator<E> iterator;
 
-    public ElasticGraphStep(GraphStep originalStep, Predicates predicates, QueryHandler queryHandler) {
+    public ElasticGraphStep(GraphStep<E> originalStep, Predicates predicates, QueryHandler queryHandler) {
         super(originalStep.getTraversal(), originalStep.getReturnClass(), originalStep.getIds());
         originalStep.getLabels().forEach(label -> this.addLabel(label.toString()));
         predicates.labels.forEach(label -> this.addLabel(label.toString()));
         this.predicates = predicates;
         this.queryHandler = queryHandler;
 
-        this.setIteratorSupplier(() -> (Iterator<E>) (Vertex.class.isAssignableFrom(this.returnClass) ? this.vertices() : this.edges()));
+        this.setIteratorSupplier(() -> {
+            MutableMetrics previous = ElasticMetrics.enter(metrics);
+            try {
+                close();
+                iterator = (Iterator<E>) (Vertex.class.isAssignableFrom(this.returnClass) ? this.vertices() : this.edges());
+                return iterator;
+            }
+            finally {
+                ElasticMetrics.exit(previous);
+            }
+        });
     }
 
     private Iterator<? extends Vertex> vertices() {
@@ -28,4 +45,35 @@ public class ElasticGraphStep<E extends Element> extends GraphStep<E> {
     private Iterator<? extends Edge> edges() {
          return queryHandler.edges(predicates);
     }
+
+    @Override
+    public void reset() {
+        super.reset();
+        close();
+    }
+
+    private void close() {
+        // releases the scroll of a traversal that stopped before consuming all of its results
+        if (iterator instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) iterator).close();
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        iterator = null;
+    }
+
+    @Override
+    public void setMetrics(MutableMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String toString() {
+        // the pushed down predicates show what the step asks elasticsearch for
+        return StringFactory.stepString(this, returnClass.getSimpleName().toLowerCase(), Arrays.asList(ids),
+                predicates.hasContainers, predicates.boolContainers);
+    }
 }
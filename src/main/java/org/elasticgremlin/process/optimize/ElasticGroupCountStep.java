@@ -0,0 +1,29 @@
+package org.elasticgremlin.process.optimize;
+
+import org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.GraphStep;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.util.StringFactory;
+import org.elasticgremlin.queryhandler.*;
+
+import java.util.Map;
+
+public class ElasticGroupCountStep<S extends Element> extends ElasticAggregationStep<S, Map<Object, Long>> {
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    public ElasticGroupCountStep(GraphStep<S> originalStep, Predicates predicates, String key, AggregationHandler aggregationHandler) {
+        super(originalStep, predicates, aggregationHandler);
+        this.key = key;
+    }
+
+    @Override
+    protected Map<Object, Long> aggregate() {
+        return returnsVertex() ? aggregationHandler.vertexGroupCount(predicates, key) : aggregationHandler.edgeGroupCount(predicates, key);
+    }
+
+    @Override
+    public String toString() {
+        return StringFactory.stepString(this, returnClass.getSimpleName().toLowerCase(), predicates.hasContainers, predicates.boolContainers, key);
+    }
+}
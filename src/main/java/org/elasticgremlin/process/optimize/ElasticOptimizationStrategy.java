@@ -1,17 +1,28 @@
 package org.elasticgremlin.process.optimize;
 
 import org.apache.tinkerpop.gremlin.process.traversal.*;
-import org.apache.tinkerpop.gremlin.process.traversal.step.HasContainerHolder;
-import org.apache.tinkerpop.gremlin.process.traversal.step.filter.RangeGlobalStep;
-import org.apache.tinkerpop.gremlin.process.traversal.step.map.VertexStep;
+import org.apache.tinkerpop.gremlin.process.traversal.lambda.*;
+import org.apache.tinkerpop.gremlin.process.traversal.step.*;
+import org.apache.tinkerpop.gremlin.process.traversal.step.branch.RepeatStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.filter.*;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.*;
 import org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.GraphStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.*;
 import org.apache.tinkerpop.gremlin.process.traversal.strategy.AbstractTraversalStrategy;
+import org.apache.tinkerpop.gremlin.process.traversal.traverser.TraverserRequirement;
 import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalHelper;
 import org.apache.tinkerpop.gremlin.structure.*;
-import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticgremlin.queryhandler.*;
+import org.elasticgremlin.queryhandler.elasticsearch.Text;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticHelper;
 import org.elasticgremlin.structure.ElasticGraph;
+import org.javatuples.Pair;
 
-public class ElasticOptimizationStrategy extends AbstractTraversalStrategy<TraversalStrategy.VendorOptimizationStrategy> {
+import java.lang.reflect.Field;
+import java.util.*;
+
+public class ElasticOptimizationStrategy extends AbstractTraversalStrategy<TraversalStrategy.VendorOptimizationStrategy> implements TraversalStrategy.VendorOptimizationStrategy {
+    private static final long serialVersionUID = 1L;
     private static final ElasticOptimizationStrategy INSTANCE = new ElasticOptimizationStrategy();
     public static ElasticOptimizationStrategy instance() {
         return INSTANCE;
@@ -23,41 +34,110 @@ public class ElasticOptimizationStrategy extends AbstractTraversalStrategy<Trave
         Graph graph = traversal.getGraph().get();
         if(!(graph instanceof ElasticGraph)) return;
         ElasticGraph elasticGraph = (ElasticGraph) graph;
+        int batchSize = elasticGraph.configuration().getInt("elasticsearch.vertexStep.batchSize", 1000);
 
-        TraversalHelper.getStepsOfClass(GraphStep.class, traversal).forEach(graphStep -> {
+        for(GraphStep<?> graphStep : TraversalHelper.getStepsOfClass(GraphStep.class, traversal)) {
             if(graphStep.getIds().length == 0) {
-                Predicates predicates = getPredicates(graphStep, traversal);
-                final ElasticGraphStep<?> elasticGraphStep = new ElasticGraphStep<>(graphStep, predicates, elasticGraph.getQueryHandler());
-                TraversalHelper.replaceStep(graphStep, (Step) elasticGraphStep, traversal);
+                QueryHandler queryHandler = elasticGraph.getQueryHandler();
+                Predicates predicates = getPredicates(graphStep, traversal, queryHandler);
+                Step<?, ?> nextStep = graphStep.getNextStep();
+                ElasticAggregationStep<?, ?> aggregationStep = queryHandler instanceof AggregationHandler ?
+                        getAggregationStep(graphStep, nextStep, predicates, (AggregationHandler) queryHandler) : null;
+                if(aggregationStep != null) {
+                    // values(key) and its reducing step are replaced together
+                    Step<?, ?> lastStep = aggregationStep instanceof ElasticStatsStep ? nextStep.getNextStep() : nextStep;
+                    lastStep.getLabels().forEach(aggregationStep::addLabel);
+                    replaceStep(graphStep, aggregationStep, traversal);
+                    traversal.removeStep(nextStep);
+                    if(lastStep != nextStep) traversal.removeStep(lastStep);
+                }
+                else {
+                    String valueKey = getValueKey(nextStep);
+                    Step<?, ?> reducingStep = nextStep.getNextStep();
+                    if(valueKey != null && (reducingStep instanceof MinGlobalStep || reducingStep instanceof MaxGlobalStep) &&
+                            predicates.orders.isEmpty() && predicates.limitLow == 0 && predicates.limitHigh == Long.MAX_VALUE) {
+                        // min()/max() only need the first element sorted by the key, which keeps the value's own type
+                        predicates.orders.add(new Pair<>(valueKey, reducingStep instanceof MinGlobalStep ? Order.incr : Order.decr));
+                        predicates.limitHigh = 1;
+                    }
+                    String[] propertyKeys = getPropertyKeys(nextStep);
+                    if(propertyKeys != null) Collections.addAll(predicates.includes, propertyKeys);
+                    final ElasticGraphStep<?> elasticGraphStep = new ElasticGraphStep<>(graphStep, predicates, queryHandler);
+                    replaceStep(graphStep, elasticGraphStep, traversal);
+                }
             }
-        });
+        }
 
-        TraversalHelper.getStepsOfClass(VertexStep.class, traversal).forEach(vertexStep -> {
+        for(RepeatStep<?> repeatStep : TraversalHelper.getStepsOfClass(RepeatStep.class, traversal)) {
+            ElasticRepeatStep elasticRepeatStep = getRepeatStep(repeatStep, traversal, elasticGraph.getQueryHandler(), batchSize);
+            if(elasticRepeatStep != null) replaceStep(repeatStep, elasticRepeatStep, traversal);
+        }
+
+        for(VertexStep<?> vertexStep : TraversalHelper.getStepsOfClass(VertexStep.class, traversal)) {
             boolean returnVertex = vertexStep.getReturnClass().equals(Vertex.class);
-            Predicates predicates = returnVertex ? new Predicates() : getPredicates(vertexStep, traversal);
+            Predicates predicates = returnVertex ? getAdjacentPredicates(vertexStep, traversal, elasticGraph.getQueryHandler()) :
+                    getPredicates(vertexStep, traversal, elasticGraph.getQueryHandler());
+
+            Step<?, ?> edgeVertexStep = returnVertex || !(elasticGraph.getQueryHandler() instanceof AdjacentHandler) ? null :
+                    getFusableEdgeVertexStep(vertexStep, predicates, traversal);
+            if(edgeVertexStep != null) {
+                replaceStep(vertexStep, new ElasticVertexStep<Vertex>(vertexStep, predicates, edgeVertexStep, batchSize), traversal);
+                traversal.removeStep(edgeVertexStep);
+                continue;
+            }
+
+            ElasticVertexStep<?> elasticVertexStep = new ElasticVertexStep<>(vertexStep, predicates, batchSize);
+            replaceStep(vertexStep, elasticVertexStep, traversal);
+        }
+    }
 
-            ElasticVertexStep elasticVertexStep = new ElasticVertexStep(vertexStep, predicates);
-            TraversalHelper.replaceStep(vertexStep, elasticVertexStep, traversal);
-        });
+    @SuppressWarnings("unchecked")
+    private static <S, E> void replaceStep(Step<?, ?> step, Step<?, ?> replacement, Traversal.Admin<?, ?> traversal) {
+        // the replacement takes the step's place, whatever its declared types
+        TraversalHelper.replaceStep((Step<S, E>) step, (Step<S, E>) replacement, traversal);
     }
 
-    private Predicates getPredicates(Step step, Traversal.Admin traversal){
+    private Predicates getPredicates(Step<?, ?> step, Traversal.Admin<?, ?> traversal, QueryHandler queryHandler){
         Predicates predicates = new Predicates();
         Step<?, ?> nextStep = step.getNextStep();
 
         while(true) {
+            BoolContainer boolContainer = step instanceof GraphStep ? getBoolContainer(nextStep) : null;
             if(nextStep instanceof HasContainerHolder) {
                 HasContainerHolder hasContainerHolder = (HasContainerHolder) nextStep;
+                if(!isTextSearchable(hasContainerHolder.getHasContainers(), queryHandler)) return predicates;
                 hasContainerHolder.getHasContainers().forEach(predicates.hasContainers::add);
                 collectLabels(predicates, nextStep);
                 traversal.removeStep(nextStep);
             }
+            else if(boolContainer != null) {
+                // or()/and()/not()/where() over has chains become nested bool clauses
+                if(!isTextSearchable(boolContainer, queryHandler)) return predicates;
+                predicates.boolContainers.add(boolContainer);
+                collectLabels(predicates, nextStep);
+                traversal.removeStep(nextStep);
+            }
+            else if(nextStep instanceof OrderGlobalStep && step instanceof GraphStep && nextStep.getNextStep() instanceof RangeGlobalStep) {
+                // a sorted top-k, fetched as a single sorted search
+                List<Pair<String, Order>> orders = getOrders((OrderGlobalStep) nextStep, predicates);
+                if(orders == null) return predicates;
+                predicates.orders.addAll(orders);
+                collectLabels(predicates, nextStep);
+                traversal.removeStep(nextStep);
+            }
             else if(nextStep instanceof RangeGlobalStep) {
-                /*RangeGlobalStep rangeGlobalStep = (RangeGlobalStep) nextStep;
-                predicates.limitLow = rangeGlobalStep.getLowRange();
-                predicates.limitHigh = rangeGlobalStep.getHighRange();
-		        collectLabels(predicates, nextStep);
-                traversal.removeStep(rangeGlobalStep);*/
+                RangeGlobalStep<?> rangeGlobalStep = (RangeGlobalStep<?>) nextStep;
+                if(step instanceof VertexStep) {
+                    // the range is global, a single vertex can't contribute more than its high bound
+                    predicates.limitHigh = getHighRange(rangeGlobalStep);
+                }
+                else {
+                    predicates.limitLow = rangeGlobalStep.getLowRange();
+                    predicates.limitHigh = getHighRange(rangeGlobalStep);
+                    collectLabels(predicates, nextStep);
+                    traversal.removeStep(rangeGlobalStep);
+                }
+                return predicates;
             }
             else return predicates;
 
@@ -65,6 +145,232 @@ public class ElasticOptimizationStrategy extends AbstractTraversalStrategy<Trave
         }
     }
 
+    private List<Pair<String, Order>> getOrders(OrderGlobalStep<?> orderStep, Predicates predicates) {
+        List<Pair<String, Order>> orders = new ArrayList<>();
+        for(Comparator<?> comparator : orderStep.getComparators()) {
+            String key;
+            Comparator<?> valueComparator;
+            if(comparator instanceof ElementValueComparator) {
+                key = ((ElementValueComparator) comparator).getPropertyKey();
+                valueComparator = ((ElementValueComparator) comparator).getValueComparator();
+            }
+            else if(comparator instanceof ElementFunctionComparator && ((ElementFunctionComparator) comparator).getElementFunction() == T.id) {
+                // ids are only sortable through _uid, which is prefixed by the type
+                if(getSingleLabel(predicates) == null) return null;
+                key = T.id.getAccessor();
+                valueComparator = ((ElementFunctionComparator) comparator).getValueComparator();
+            }
+            else return null;
+
+            if(!valueComparator.equals(Order.incr) && !valueComparator.equals(Order.decr)) return null;
+            orders.add(new Pair<>(key, (Order) valueComparator));
+        }
+        return orders.isEmpty() ? null : orders;
+    }
+
+    private String getSingleLabel(Predicates predicates) {
+        for(HasContainer hasContainer : predicates.hasContainers) {
+            if(!hasContainer.getKey().equals(T.label.getAccessor())) continue;
+            if(hasContainer.getBiPredicate() != Compare.eq && hasContainer.getBiPredicate() != Contains.within) return null;
+            Object value = hasContainer.getValue();
+            if(value instanceof List) return ((List) value).size() == 1 ? ((List) value).get(0).toString() : null;
+            return value.toString();
+        }
+        return null;
+    }
+
+    private ElasticAggregationStep<?, ?> getAggregationStep(GraphStep<?> graphStep, Step<?, ?> nextStep, Predicates predicates, AggregationHandler aggregationHandler) {
+        // an aggregation emits a single value, the step labels of the elements it replaces would be lost
+        if(!graphStep.getLabels().isEmpty() || !predicates.labels.isEmpty()) return null;
+
+        if(nextStep instanceof CountGlobalStep)
+            return new ElasticCountStep<>(graphStep, predicates, aggregationHandler);
+
+        // aggregations can't be limited to a range of the matching documents
+        if(predicates.limitLow > 0 || predicates.limitHigh < Long.MAX_VALUE) return null;
+
+        String groupKey = getGroupCountKey(nextStep);
+        if(groupKey != null)
+            return new ElasticGroupCountStep<>(graphStep, predicates, groupKey, aggregationHandler);
+
+        String valueKey = getValueKey(nextStep);
+        if(valueKey != null && nextStep.getNextStep() instanceof SumGlobalStep)
+            return new ElasticStatsStep<>(graphStep, predicates, valueKey, ElasticStatsStep.Statistic.SUM, aggregationHandler);
+        if(valueKey != null && nextStep.getNextStep() instanceof MeanGlobalStep)
+            return new ElasticStatsStep<>(graphStep, predicates, valueKey, ElasticStatsStep.Statistic.MEAN, aggregationHandler);
+
+        return null;
+    }
+
+    private String getValueKey(Step<?, ?> step) {
+        // values(key) of a single key, whose values can be reduced without the elements
+        if(!(step instanceof PropertiesStep) || !step.getLabels().isEmpty()) return null;
+        PropertiesStep<?> propertiesStep = (PropertiesStep) step;
+        if(propertiesStep.getReturnType() != PropertyType.VALUE || propertiesStep.getPropertyKeys().length != 1) return null;
+        return propertiesStep.getPropertyKeys()[0];
+    }
+
+    private String getGroupCountKey(Step<?, ?> step) {
+        List<? extends Traversal.Admin<?, ?>> children;
+        if(step instanceof GroupCountStep) {
+            children = ((GroupCountStep<?, ?>) step).getLocalChildren();
+            if(children.size() != 1) return null;
+        }
+        else if(step instanceof GroupStep) {
+            // group().by(key).by().by(count(local)) counts the elements of each group
+            GroupStep<?, ?, ?, ?> groupStep = (GroupStep<?, ?, ?, ?>) step;
+            children = groupStep.getLocalChildren();
+            if(children.size() != 3 || !(children.get(1) instanceof IdentityTraversal)) return null;
+            List<?> reduceSteps = groupStep.getReduceTraversal().getSteps();
+            if(reduceSteps.size() != 1 || !(reduceSteps.get(0) instanceof CountLocalStep)) return null;
+        }
+        else return null;
+
+        Traversal.Admin<?, ?> keyTraversal = children.get(0);
+        if(keyTraversal instanceof TokenTraversal && ((TokenTraversal) keyTraversal).getToken().equals(T.label))
+            return T.label.getAccessor();
+        if(keyTraversal instanceof ElementValueTraversal)
+            return ((ElementValueTraversal) keyTraversal).getPropertyKey();
+        return null;
+    }
+
+    private String[] getPropertyKeys(Step<?, ?> step) {
+        String[] propertyKeys = null;
+        if(step instanceof PropertiesStep) propertyKeys = ((PropertiesStep) step).getPropertyKeys();
+        // PropertyMapStep doesn't expose its keys
+        else if(step instanceof PropertyMapStep) propertyKeys = (String[]) getField(PropertyMapStep.class, "propertyKeys", step);
+        // no keys means all the properties, so the whole source is needed
+        return propertyKeys != null && propertyKeys.length > 0 ? propertyKeys : null;
+    }
+
+    private ElasticRepeatStep getRepeatStep(RepeatStep<?> repeatStep, Traversal.Admin<?, ?> traversal, QueryHandler queryHandler, int batchSize) {
+        // traversers are merged per vertex, which loses their paths, sacks and outer loops
+        Set<TraverserRequirement> requirements = TraversalHelper.getRootTraversal(traversal).getTraverserRequirements();
+        if(requirements.contains(TraverserRequirement.PATH) || requirements.contains(TraverserRequirement.SACK) ||
+                requirements.contains(TraverserRequirement.NESTED_LOOP)) return null;
+
+        // only repeat(out()).times(n)
+        if(repeatStep.untilFirst || repeatStep.emitFirst) return null;
+        List<? extends Traversal.Admin<?, ?>> localChildren = repeatStep.getLocalChildren();
+        if(localChildren.size() != 1 || !(localChildren.get(0) instanceof LoopTraversal)) return null;
+        List<?> steps = repeatStep.getGlobalChildren().get(0).getSteps();
+        if(steps.size() != 2 || !(steps.get(0) instanceof VertexStep) || !(steps.get(1) instanceof RepeatStep.RepeatEndStep)) return null;
+        VertexStep<?> vertexStep = (VertexStep<?>) steps.get(0);
+        if(!vertexStep.getReturnClass().equals(Vertex.class) || !vertexStep.getLabels().isEmpty()) return null;
+
+        // LoopTraversal doesn't expose its loops
+        Long times = (Long) getField(LoopTraversal.class, "maxLoops", localChildren.get(0));
+        // the body runs at least once, even for times(0)
+        if(times == null || times < 1) return null;
+
+        Step<?, ?> nextStep = repeatStep.getNextStep();
+        boolean distinct = nextStep instanceof DedupGlobalStep && ((DedupGlobalStep) nextStep).getLocalChildren().isEmpty();
+        return new ElasticRepeatStep(repeatStep, vertexStep, times, distinct, queryHandler, batchSize);
+    }
+
+    private Object getField(Class<?> clazz, String name, Object object) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(object);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private Step<?, ?> getFusableEdgeVertexStep(VertexStep<?> vertexStep, Predicates predicates, Traversal.Admin<?, ?> traversal) {
+        // the edges are only needed to reach the vertices at their other end, unless they're labeled or in the path
+        if(!vertexStep.getLabels().isEmpty() || !predicates.labels.isEmpty()) return null;
+        if(predicates.limitLow > 0 || predicates.limitHigh < Long.MAX_VALUE) return null;
+        if(TraversalHelper.getRootTraversal(traversal).getTraverserRequirements().contains(TraverserRequirement.PATH)) return null;
+
+        // outE().inV() and inE().outV(), otherV() needs the path anyway
+        Step<?, ?> nextStep = vertexStep.getNextStep();
+        Direction direction = vertexStep.getDirection();
+        if(direction == Direction.BOTH || !(nextStep instanceof EdgeVertexStep)) return null;
+        return ((EdgeVertexStep) nextStep).getDirection() == direction.opposite() ? nextStep : null;
+    }
+
+    private Predicates getAdjacentPredicates(VertexStep<?> vertexStep, Traversal.Admin<?, ?> traversal, QueryHandler queryHandler) {
+        Predicates predicates = new Predicates();
+        Step<?, ?> nextStep = vertexStep.getNextStep();
+        BoolContainer boolContainer = getBoolContainer(nextStep);
+        while(nextStep instanceof HasContainerHolder || boolContainer != null) {
+            // the has and bool steps filter the adjacent vertices, which are tested in a batch,
+            // from the first one that can't be searched on, the filters are left to run in memory
+            if(boolContainer != null ? !ElasticHelper.isSupported(boolContainer) || !isTextSearchable(boolContainer, queryHandler) :
+                    !((HasContainerHolder) nextStep).getHasContainers().stream().allMatch(ElasticHelper::isSupported) ||
+                    !isTextSearchable(((HasContainerHolder) nextStep).getHasContainers(), queryHandler)) break;
+            if(boolContainer != null) predicates.boolContainers.add(boolContainer);
+            else ((HasContainerHolder) nextStep).getHasContainers().forEach(predicates.hasContainers::add);
+            collectLabels(predicates, nextStep);
+            traversal.removeStep(nextStep);
+            nextStep = nextStep.getNextStep();
+            boolContainer = getBoolContainer(nextStep);
+        }
+        if(nextStep instanceof RangeGlobalStep)
+            predicates.limitHigh = getHighRange((RangeGlobalStep<?>) nextStep);
+        return predicates;
+    }
+
+    private boolean isTextSearchable(List<HasContainer> hasContainers, QueryHandler queryHandler) {
+        // the text predicates search the tokens of analyzed keys only, a keyword mapped text is a single term
+        return hasContainers.stream().allMatch(has -> !(has.getBiPredicate() instanceof Text) ||
+                queryHandler instanceof TextHandler && ((TextHandler) queryHandler).isAnalyzed(has.getKey()));
+    }
+
+    private boolean isTextSearchable(BoolContainer boolContainer, QueryHandler queryHandler) {
+        return isTextSearchable(boolContainer.hasContainers, queryHandler) &&
+                boolContainer.children.stream().allMatch(child -> isTextSearchable(child, queryHandler));
+    }
+
+    private BoolContainer getBoolContainer(Step<?, ?> step) {
+        BoolContainer.Type type;
+        if(step instanceof OrStep) type = BoolContainer.Type.OR;
+        else if(step instanceof AndStep || step instanceof TraversalFilterStep) type = BoolContainer.Type.AND;
+        else if(step instanceof NotStep) type = BoolContainer.Type.NOT;
+        else return null;
+
+        // an infix or()/and() has no children until the conjunction strategy folds its neighbours in
+        List<Traversal.Admin<Object, Object>> children = ((TraversalParent) step).getLocalChildren();
+        if(children.isEmpty()) return null;
+        BoolContainer boolContainer = new BoolContainer(type);
+        for(Traversal.Admin<Object, Object> child : children) {
+            BoolContainer clause = getChainContainer(child);
+            if(clause == null) return null;
+            boolContainer.children.add(clause);
+        }
+        return boolContainer;
+    }
+
+    private BoolContainer getChainContainer(Traversal.Admin<?, ?> traversal) {
+        // only chains of filters on the element itself, anything else needs the traversal
+        BoolContainer chain = new BoolContainer(BoolContainer.Type.AND);
+        List<?> steps = traversal.getSteps();
+        for(Object element : steps) {
+            Step<?, ?> step = (Step<?, ?>) element;
+            if(!step.getLabels().isEmpty()) return null;
+            if(step instanceof HasContainerHolder)
+                ((HasContainerHolder) step).getHasContainers().forEach(chain.hasContainers::add);
+            else if(step instanceof PropertiesStep && steps.size() == 1 && ((PropertiesStep) step).getPropertyKeys().length == 1) {
+                // has(key) filters by the existence of the property
+                String key = ((PropertiesStep) step).getPropertyKeys()[0];
+                chain.hasContainers.add(new HasContainer(key, P.within((Collection<Object>) null)));
+            }
+            else {
+                BoolContainer boolContainer = getBoolContainer(step);
+                if(boolContainer == null) return null;
+                chain.children.add(boolContainer);
+            }
+        }
+        return chain;
+    }
+
+    private long getHighRange(RangeGlobalStep<?> rangeGlobalStep) {
+        return rangeGlobalStep.getHighRange() < 0 ? Long.MAX_VALUE : rangeGlobalStep.getHighRange();
+    }
+
     private void collectLabels(Predicates predicates, Step<?, ?> step) {
         step.getLabels().forEach(predicates.labels::add);
     }
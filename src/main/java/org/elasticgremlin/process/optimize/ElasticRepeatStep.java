@@ -0,0 +1,141 @@
+package org.elasticgremlin.process.optimize;
+
+import org.apache.tinkerpop.gremlin.process.traversal.*;
+import org.apache.tinkerpop.gremlin.process.traversal.step.Profiling;
+import org.apache.tinkerpop.gremlin.process.traversal.step.branch.RepeatStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.VertexStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.AbstractStep;
+import org.apache.tinkerpop.gremlin.process.traversal.traverser.TraverserRequirement;
+import org.apache.tinkerpop.gremlin.process.traversal.util.*;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.apache.tinkerpop.gremlin.structure.util.StringFactory;
+import org.elasticgremlin.queryhandler.*;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticMetrics;
+import org.elasticgremlin.structure.BaseVertex;
+
+import java.util.*;
+
+public class ElasticRepeatStep extends AbstractStep<Vertex, Vertex> implements Profiling {
+    private static final long serialVersionUID = 1L;
+
+    private final Direction direction;
+    private final String[] edgeLabels;
+    private final long times;
+    private final boolean distinct;
+    private final QueryHandler queryHandler;
+    private final int batchSize;
+    private Iterator<Traverser<Vertex>> results;
+    private MutableMetrics metrics;
+
+    public ElasticRepeatStep(RepeatStep<?> originalStep, VertexStep<?> vertexStep, long times, boolean distinct, QueryHandler queryHandler, int batchSize) {
+        super(originalStep.getTraversal());
+        originalStep.getLabels().forEach(this::addLabel);
+        this.direction = vertexStep.getDirection();
+        this.edgeLabels = vertexStep.getEdgeLabels();
+        this.times = times;
+        this.distinct = distinct;
+        this.queryHandler = queryHandler;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected Traverser<Vertex> processNextStart() {
+        // inside a child traversal like union() or choose(), new starts come in after the earlier results were emitted
+        while (results == null || !results.hasNext()) {
+            if (!starts.hasNext()) throw FastNoSuchElementException.instance();
+            MutableMetrics previous = ElasticMetrics.enter(metrics);
+            try {
+                results = expand();
+            }
+            finally {
+                ElasticMetrics.exit(previous);
+            }
+        }
+        return results.next();
+    }
+
+    private Iterator<Traverser<Vertex>> expand() {
+        // the frontier keeps one vertex per id, with the bulk of all the traversers that reached it
+        Map<Object, Vertex> frontier = new LinkedHashMap<>();
+        Map<Object, Long> bulks = new HashMap<>();
+        while (starts.hasNext()) {
+            Traverser.Admin<Vertex> traverser = starts.next();
+            addToFrontier(frontier, bulks, traverser.get(), traverser.bulk());
+        }
+
+        for (long loop = 0; loop < times && !frontier.isEmpty(); loop++) {
+            Map<Object, Vertex> nextFrontier = new LinkedHashMap<>();
+            Map<Object, Long> nextBulks = new HashMap<>();
+            List<BaseVertex> chunk = new ArrayList<>();
+            Iterator<Vertex> vertices = frontier.values().iterator();
+            while (vertices.hasNext()) {
+                chunk.add((BaseVertex) vertices.next());
+                if (chunk.size() == batchSize || !vertices.hasNext()) {
+                    expandChunk(chunk, bulks, nextFrontier, nextBulks);
+                    chunk = new ArrayList<>();
+                }
+            }
+            frontier = nextFrontier;
+            bulks = nextBulks;
+        }
+
+        TraverserGenerator generator = TraversalHelper.getRootTraversal(this.getTraversal()).getTraverserGenerator();
+        List<Traverser<Vertex>> traversers = new ArrayList<>(frontier.size());
+        for (Vertex vertex : frontier.values())
+            traversers.add(generator.generate(vertex, this, bulks.get(vertex.id())));
+        return traversers.iterator();
+    }
+
+    private void expandChunk(List<BaseVertex> chunk, Map<Object, Long> bulks, Map<Object, Vertex> nextFrontier, Map<Object, Long> nextBulks) {
+        if (queryHandler instanceof AdjacentHandler) {
+            // only the ids and labels of the adjacent vertices are fetched, not the whole edges
+            Map<Object, List<Vertex>> vertexToAdjacent = ((AdjacentHandler) queryHandler)
+                    .adjacentVertices(chunk.iterator(), direction, edgeLabels, new Predicates());
+            for (BaseVertex vertex : chunk) {
+                List<Vertex> adjacentVertices = vertexToAdjacent.get(vertex.id());
+                if (adjacentVertices == null) continue;
+                long bulk = bulks.get(vertex.id());
+                for (Vertex adjacent : adjacentVertices)
+                    addToFrontier(nextFrontier, nextBulks, adjacent, bulk);
+            }
+            return;
+        }
+
+        Map<Object, Set<Edge>> vertexToEdges = queryHandler.edges(chunk.iterator(), direction, edgeLabels, new Predicates());
+        for (BaseVertex vertex : chunk) {
+            Set<Edge> edges = vertexToEdges.get(vertex.id());
+            if (edges == null) continue;
+            long bulk = bulks.get(vertex.id());
+            for (Edge edge : edges)
+                addToFrontier(nextFrontier, nextBulks, BaseVertex.vertexToVertex(vertex, edge, direction), bulk);
+        }
+    }
+
+    private void addToFrontier(Map<Object, Vertex> frontier, Map<Object, Long> bulks, Vertex vertex, long bulk) {
+        frontier.putIfAbsent(vertex.id(), vertex);
+        // when the results are deduplicated anyway, a single traverser per vertex is enough
+        bulks.merge(vertex.id(), distinct ? 1L : bulk, distinct ? (oldBulk, newBulk) -> 1L : Long::sum);
+    }
+
+    @Override
+    public void setMetrics(MutableMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Set<TraverserRequirement> getRequirements() {
+        // the traversers of a vertex are emitted as a single bulked traverser
+        return Collections.singleton(TraverserRequirement.BULK);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        results = null;
+    }
+
+    @Override
+    public String toString() {
+        return StringFactory.stepString(this, direction, Arrays.asList(edgeLabels), times);
+    }
+}
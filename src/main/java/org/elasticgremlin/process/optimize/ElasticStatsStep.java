@@ -0,0 +1,35 @@
+package org.elasticgremlin.process.optimize;
+
+import org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.GraphStep;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.util.StringFactory;
+import org.elasticgremlin.queryhandler.*;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+
+public class ElasticStatsStep<S extends Element> extends ElasticAggregationStep<S, Double> {
+    private static final long serialVersionUID = 1L;
+
+    public enum Statistic { SUM, MEAN }
+
+    private final String key;
+    private final Statistic statistic;
+
+    public ElasticStatsStep(GraphStep<S> originalStep, Predicates predicates, String key, Statistic statistic, AggregationHandler aggregationHandler) {
+        super(originalStep, predicates, aggregationHandler);
+        this.key = key;
+        this.statistic = statistic;
+    }
+
+    @Override
+    protected Double aggregate() {
+        Stats stats = returnsVertex() ? aggregationHandler.vertexStats(predicates, key) : aggregationHandler.edgeStats(predicates, key);
+        // like sum() and mean(), no values sum up to 0 and average to NaN
+        if (statistic == Statistic.SUM) return stats.getCount() == 0 ? 0d : stats.getSum();
+        return stats.getCount() == 0 ? Double.NaN : stats.getAvg();
+    }
+
+    @Override
+    public String toString() {
+        return StringFactory.stepString(this, returnClass.getSimpleName().toLowerCase(), predicates.hasContainers, predicates.boolContainers, key, statistic.toString().toLowerCase());
+    }
+}
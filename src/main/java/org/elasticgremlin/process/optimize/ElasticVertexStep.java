@@ -1,22 +1,68 @@
 package org.elasticgremlin.process.optimize;
 
-import org.apache.tinkerpop.gremlin.process.traversal.Traverser;
+import org.apache.tinkerpop.gremlin.process.traversal.*;
+import org.apache.tinkerpop.gremlin.process.traversal.step.Profiling;
 import org.apache.tinkerpop.gremlin.process.traversal.step.map.VertexStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.*;
 import org.apache.tinkerpop.gremlin.structure.*;
 import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticMetrics;
 import org.elasticgremlin.structure.BaseVertex;
 
-import java.util.Iterator;
+import java.util.*;
 
-public class ElasticVertexStep<E extends Element> extends VertexStep<E> {
+public class ElasticVertexStep<E extends Element> extends VertexStep<E> implements Profiling {
+    private static final long serialVersionUID = 1L;
     private final Predicates predicates;
+    private final Predicates edgePredicates;
+    private final int batchSize;
+    private Iterator<Traverser.Admin<Vertex>> batch = Collections.emptyIterator();
+    private Traverser.Admin<Vertex> head;
+    private Iterator<E> iterator = Collections.emptyIterator();
+    private MutableMetrics metrics;
 
-    public ElasticVertexStep(VertexStep originalStep, Predicates predicates) {
+    public ElasticVertexStep(VertexStep<E> originalStep, Predicates predicates, int batchSize) {
         super(originalStep.getTraversal(), originalStep.getReturnClass(), originalStep.getDirection(),
                 originalStep.getEdgeLabels());
         originalStep.getLabels().forEach(label -> this.addLabel(label.toString()));
         predicates.labels.forEach(this::addLabel);
         this.predicates = predicates;
+        this.edgePredicates = null;
+        this.batchSize = batchSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    public ElasticVertexStep(VertexStep<?> edgeStep, Predicates edgePredicates, Step<?, ?> edgeVertexStep, int batchSize) {
+        // the fused step emits the vertices at the other end of the edges
+        super(edgeStep.getTraversal(), (Class<E>) Vertex.class, edgeStep.getDirection(), edgeStep.getEdgeLabels());
+        edgeVertexStep.getLabels().forEach(this::addLabel);
+        this.predicates = new Predicates();
+        this.edgePredicates = edgePredicates;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected Traverser<E> processNextStart() {
+        while (!iterator.hasNext()) {
+            if (!batch.hasNext()) batch = nextBatch();
+            head = batch.next();
+            iterator = flatMap(head);
+        }
+        return head.split(iterator.next(), this);
+    }
+
+    private Iterator<Traverser.Admin<Vertex>> nextBatch() {
+        if (!starts.hasNext()) throw FastNoSuchElementException.instance();
+        List<Traverser.Admin<Vertex>> traversers = new ArrayList<>();
+        List<BaseVertex> vertices = new ArrayList<>();
+        while (starts.hasNext() && traversers.size() < batchSize) {
+            Traverser.Admin<Vertex> traverser = starts.next();
+            traversers.add(traverser);
+            if (traverser.get() instanceof BaseVertex) vertices.add((BaseVertex) traverser.get());
+        }
+        // the first vertex to be queried fetches the edges of the whole batch, wherever its vertices came from
+        vertices.forEach(vertex -> vertex.setSiblings(vertices));
+        return traversers.iterator();
     }
 
     @Override
@@ -25,9 +71,41 @@ public class ElasticVertexStep<E extends Element> extends VertexStep<E> {
         if (!(vertex instanceof BaseVertex)) return super.flatMap(traverser);
         BaseVertex baseVertex = (BaseVertex) vertex;
 
-        if (Vertex.class.isAssignableFrom(this.getReturnClass()))
-            return (Iterator<E>) baseVertex.vertices(this.getDirection(), this.getEdgeLabels(), predicates);
+        MutableMetrics previous = ElasticMetrics.enter(metrics);
+        try {
+            // outE().has(...).inV() fused into a single step, the edges are filtered but never built
+            if (edgePredicates != null)
+                return (Iterator<E>) baseVertex.adjacentVertices(this.getDirection(), this.getEdgeLabels(), edgePredicates);
 
-        return (Iterator<E>) baseVertex.edges(this.getDirection(), this.getEdgeLabels(), predicates);
+            if (Vertex.class.isAssignableFrom(this.getReturnClass()))
+                return (Iterator<E>) baseVertex.vertices(this.getDirection(), this.getEdgeLabels(), predicates);
+
+            return (Iterator<E>) baseVertex.edges(this.getDirection(), this.getEdgeLabels(), predicates);
+        }
+        finally {
+            ElasticMetrics.exit(previous);
+        }
+    }
+
+    @Override
+    public void setMetrics(MutableMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        batch = Collections.emptyIterator();
+        head = null;
+        iterator = Collections.emptyIterator();
+    }
+
+    @Override
+    public ElasticVertexStep<E> clone() {
+        ElasticVertexStep<E> clone = (ElasticVertexStep<E>) super.clone();
+        clone.batch = Collections.emptyIterator();
+        clone.head = null;
+        clone.iterator = Collections.emptyIterator();
+        return clone;
     }
 }
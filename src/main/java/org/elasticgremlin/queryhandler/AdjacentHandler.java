@@ -0,0 +1,12 @@
+package org.elasticgremlin.queryhandler;
+
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.structure.BaseVertex;
+
+import java.util.*;
+
+public interface AdjacentHandler {
+    Map<Object, List<Vertex>> adjacentVertices(Iterator<BaseVertex> vertices, Direction direction, String[] edgeLabels, Predicates edgePredicates);
+
+    Iterator<Vertex> vertices(Set<Object> vertexIds, Predicates predicates);
+}
@@ -0,0 +1,14 @@
+package org.elasticgremlin.queryhandler;
+
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+
+import java.util.Map;
+
+public interface AggregationHandler {
+    long vertexCount(Predicates predicates);
+    long edgeCount(Predicates predicates);
+    Map<Object, Long> vertexGroupCount(Predicates predicates, String key);
+    Map<Object, Long> edgeGroupCount(Predicates predicates, String key);
+    Stats vertexStats(Predicates predicates, String key);
+    Stats edgeStats(Predicates predicates, String key);
+}
@@ -0,0 +1,103 @@
+package org.elasticgremlin.queryhandler;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Element;
+
+import java.util.*;
+
+/**
+ * A node of a boolean predicates tree.
+ * The has containers and the child nodes are the clauses of the node, combined by its type.
+ */
+public class BoolContainer {
+    public enum Type {
+        /**
+         * All the clauses hold
+         */
+        AND,
+        /**
+         * At least one of the clauses holds
+         */
+        OR,
+        /**
+         * None of the clauses holds
+         */
+        NOT
+    }
+
+    public final Type type;
+    public ArrayList<HasContainer> hasContainers = new ArrayList<>();
+    public ArrayList<BoolContainer> children = new ArrayList<>();
+
+    public BoolContainer(Type type) {
+        this.type = type;
+    }
+
+    public boolean test(Element element) {
+        int passed = 0;
+        for (HasContainer hasContainer : hasContainers)
+            if (test(hasContainer, element)) passed++;
+        for (BoolContainer child : children)
+            if (child.test(element)) passed++;
+
+        switch (type) {
+            case AND: return passed == hasContainers.size() + children.size();
+            case OR: return passed > 0;
+            default: return passed == 0;
+        }
+    }
+
+    private static boolean test(HasContainer hasContainer, Element element) {
+        // has(key) and hasNot(key) are containers without a value, like the ones the elastic filters expect
+        if (hasContainer.getValue() == null && hasContainer.getBiPredicate() instanceof Contains)
+            return element.property(hasContainer.getKey()).isPresent() == (hasContainer.getBiPredicate() == Contains.within);
+        return hasContainer.test(element);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        BoolContainer that = (BoolContainer) o;
+
+        if (type != that.type) return false;
+        if (!equals(hasContainers, that.hasContainers)) return false;
+        return children.equals(that.children);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = type.hashCode();
+        result = 31 * result + hashCode(hasContainers);
+        result = 31 * result + children.hashCode();
+        return result;
+    }
+
+    // HasContainer doesn't implement equals and hashCode, the same predicates of two traversals are compared by key and P
+    static boolean equals(List<HasContainer> hasContainers, List<HasContainer> otherHasContainers) {
+        if (otherHasContainers == null || hasContainers.size() != otherHasContainers.size()) return false;
+        for (int i = 0; i < hasContainers.size(); i++) {
+            HasContainer hasContainer = hasContainers.get(i);
+            HasContainer other = otherHasContainers.get(i);
+            if (!Objects.equals(hasContainer.getKey(), other.getKey()) ||
+                    !Objects.equals(hasContainer.getPredicate(), other.getPredicate())) return false;
+        }
+        return true;
+    }
+
+    static int hashCode(List<HasContainer> hasContainers) {
+        int result = 1;
+        for (HasContainer hasContainer : hasContainers)
+            result = 31 * result + Objects.hash(hasContainer.getKey(), hasContainer.getPredicate());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        ArrayList<Object> clauses = new ArrayList<>(hasContainers);
+        clauses.addAll(children);
+        return type.toString().toLowerCase() + clauses;
+    }
+}
@@ -1,14 +1,19 @@
 package org.elasticgremlin.queryhandler;
 
+import org.apache.tinkerpop.gremlin.process.traversal.Order;
 import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.javatuples.Pair;
 
-import java.util.ArrayList;
+import java.util.*;
 
 public class Predicates {
     public ArrayList<HasContainer> hasContainers = new ArrayList<>();
+    public ArrayList<BoolContainer> boolContainers = new ArrayList<>();
     public long limitLow = 0;
     public long limitHigh = Long.MAX_VALUE;
     public ArrayList<String> labels = new ArrayList<>();
+    public ArrayList<Pair<String, Order>> orders = new ArrayList<>();
+    public ArrayList<String> includes = new ArrayList<>();
 
     @Override
     public boolean equals(Object o) {
@@ -19,18 +24,25 @@ public class Predicates {
 
         if (limitLow != that.limitLow) return false;
         if (limitHigh != that.limitHigh) return false;
-        if (hasContainers != null ? !hasContainers.equals(that.hasContainers) : that.hasContainers != null)
+        if (hasContainers != null ? !BoolContainer.equals(hasContainers, that.hasContainers) : that.hasContainers != null)
             return false;
-        return !(labels != null ? !labels.equals(that.labels) : that.labels != null);
+        if (boolContainers != null ? !boolContainers.equals(that.boolContainers) : that.boolContainers != null)
+            return false;
+        if (labels != null ? !labels.equals(that.labels) : that.labels != null) return false;
+        if (orders != null ? !orders.equals(that.orders) : that.orders != null) return false;
+        return !(includes != null ? !includes.equals(that.includes) : that.includes != null);
 
     }
 
     @Override
     public int hashCode() {
-        int result = hasContainers != null ? hasContainers.hashCode() : 0;
+        int result = hasContainers != null ? BoolContainer.hashCode(hasContainers) : 0;
+        result = 31 * result + (boolContainers != null ? boolContainers.hashCode() : 0);
         result = 31 * result + (int) (limitLow ^ (limitLow >>> 32));
         result = 31 * result + (int) (limitHigh ^ (limitHigh >>> 32));
         result = 31 * result + (labels != null ? labels.hashCode() : 0);
+        result = 31 * result + (orders != null ? orders.hashCode() : 0);
+        result = 31 * result + (includes != null ? includes.hashCode() : 0);
         return result;
     }
 }
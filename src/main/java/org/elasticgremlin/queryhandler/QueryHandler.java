@@ -3,13 +3,22 @@ package org.elasticgremlin.queryhandler;
 
 import org.apache.commons.configuration.Configuration;
 import org.elasticgremlin.structure.ElasticGraph;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface QueryHandler extends VertexHandler, EdgeHandler {
 
     void init(ElasticGraph graph, Configuration configuration) throws IOException;
     void commit();
+    // handlers without bulk requests commit right away and have no item responses to report
+    default CompletableFuture<List<BulkItemResponse>> commitAsync() {
+        commit();
+        return CompletableFuture.completedFuture(Collections.emptyList());
+    }
     void printStats();
     void close();
 }
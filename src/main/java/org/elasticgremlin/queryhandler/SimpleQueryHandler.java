@@ -6,39 +6,59 @@ import org.elasticgremlin.queryhandler.elasticsearch.edgedoc.DocEdgeHandler;
 import org.elasticgremlin.queryhandler.elasticsearch.helpers.*;
 import org.elasticgremlin.queryhandler.elasticsearch.vertexdoc.DocVertexHandler;
 import org.elasticgremlin.structure.*;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.javatuples.Pair;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
-public class SimpleQueryHandler implements QueryHandler {
+public class SimpleQueryHandler implements QueryHandler, AggregationHandler, AdjacentHandler, TextHandler {
 
     private DocEdgeHandler docEdgeHandler;
     private DocVertexHandler elasticDocVertexHandler;
     private Client client;
+    private String indexName;
     private ElasticMutations elasticMutations;
     private TimingAccessor timing;
+    private QueryCache queryCache;
 
     @Override
     public void init(ElasticGraph graph, Configuration configuration) throws IOException {
-        String indexName = configuration.getString("elasticsearch.index.name", "graph");
-        boolean refresh = configuration.getBoolean("elasticsearch.refresh", false);
-        int scrollSize = configuration.getInt("elasticsearch.scrollSize", 500);
-        boolean bulk = configuration.getBoolean("elasticsearch.bulk", false);
+        indexName = configuration.getString("elasticsearch.index.name", "graph");
 
         client = ElasticClientFactory.create(configuration);
         ElasticHelper.createIndex(indexName, client);
+        List<Pair<String, Integer>> indexShards = ElasticHelper.getShards(indexName, client);
 
         timing = new TimingAccessor();
-        elasticMutations = new ElasticMutations(bulk, client, timing);
-        docEdgeHandler = new DocEdgeHandler(graph, client, elasticMutations, indexName, scrollSize, refresh, timing);
-        elasticDocVertexHandler = new DocVertexHandler(graph, client, elasticMutations, indexName, scrollSize, refresh, timing);
+        elasticMutations = new ElasticMutations(configuration, client, timing);
+        IndexRefresher refresher = new IndexRefresher(configuration, client, elasticMutations);
+        queryCache = new QueryCache(configuration, elasticMutations);
+        docEdgeHandler = new DocEdgeHandler(graph, client, elasticMutations, indexName, indexShards,
+                new ScrollSettings(configuration, "edge", 500), refresher, queryCache, timing);
+        elasticDocVertexHandler = new DocVertexHandler(graph, client, elasticMutations, indexName, indexShards,
+                new ScrollSettings(configuration, "vertex", 500), refresher, queryCache, timing);
     }
 
     @Override
     public void commit() { elasticMutations.commit(); }
+
+    @Override
+    public CompletableFuture<List<BulkItemResponse>> commitAsync() { return elasticMutations.commitAsync(); }
+
+    public ElasticMutations getElasticMutations() {
+        return elasticMutations;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
     @Override
     public void close() {
+        elasticMutations.close();
         client.close();
     }
 
@@ -62,6 +82,16 @@ public class SimpleQueryHandler implements QueryHandler {
         return docEdgeHandler.edges(vertices, direction, edgeLabels, predicates);
     }
 
+    @Override
+    public Map<Object, List<Vertex>> adjacentVertices(Iterator<BaseVertex> vertices, Direction direction, String[] edgeLabels, Predicates edgePredicates) {
+        return docEdgeHandler.adjacentVertices(vertices, direction, edgeLabels, edgePredicates);
+    }
+
+    @Override
+    public boolean isAnalyzed(String key) {
+        return ElasticHelper.isAnalyzed(client, indexName, key);
+    }
+
     @Override
     public Edge addEdge(Object edgeId, String label, Vertex outV, Vertex inV, Object[] properties) {
         return docEdgeHandler.addEdge(edgeId, label, outV, inV, properties);
@@ -82,6 +112,11 @@ public class SimpleQueryHandler implements QueryHandler {
         return elasticDocVertexHandler.vertices(predicates);
     }
 
+    @Override
+    public Iterator<Vertex> vertices(Set<Object> vertexIds, Predicates predicates) {
+        return elasticDocVertexHandler.vertices(vertexIds, predicates);
+    }
+
     @Override
     public BaseVertex vertex(Object vertexId, String vertexLabel, Edge edge, Direction direction) {
         return elasticDocVertexHandler.vertex(vertexId, vertexLabel, edge, direction);
@@ -92,6 +127,36 @@ public class SimpleQueryHandler implements QueryHandler {
         return elasticDocVertexHandler.addVertex(id, label, properties);
     }
 
+    @Override
+    public long vertexCount(Predicates predicates) {
+        return elasticDocVertexHandler.count(predicates);
+    }
+
+    @Override
+    public long edgeCount(Predicates predicates) {
+        return docEdgeHandler.count(predicates);
+    }
+
+    @Override
+    public Map<Object, Long> vertexGroupCount(Predicates predicates, String key) {
+        return elasticDocVertexHandler.groupCount(predicates, key);
+    }
+
+    @Override
+    public Map<Object, Long> edgeGroupCount(Predicates predicates, String key) {
+        return docEdgeHandler.groupCount(predicates, key);
+    }
+
+    @Override
+    public Stats vertexStats(Predicates predicates, String key) {
+        return elasticDocVertexHandler.stats(predicates, key);
+    }
+
+    @Override
+    public Stats edgeStats(Predicates predicates, String key) {
+        return docEdgeHandler.stats(predicates, key);
+    }
+
     @Override
     public void printStats() {
         timing.print();
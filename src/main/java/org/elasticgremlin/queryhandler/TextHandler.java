@@ -0,0 +1,5 @@
+package org.elasticgremlin.queryhandler;
+
+public interface TextHandler {
+    boolean isAnalyzed(String key);
+}
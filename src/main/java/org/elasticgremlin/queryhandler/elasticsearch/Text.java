@@ -0,0 +1,144 @@
+package org.elasticgremlin.queryhandler.elasticsearch;
+
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.regex.Pattern;
+
+/**
+ * Text ENUM class.
+ * The predicates work on the tokens of a text property, the same way a field analyzed with the
+ * standard analyzer is searched: the text is split on non alphanumeric characters and lowercased.
+ * They're searched on keys mapped with such an analyzer, on keys of the index's default keyword analyzer they're tested in memory.
+ */
+public enum Text implements BiPredicate<Object, Object> {
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Fields
+    /**
+     * Whether the text contains all the tokens of the query, in any order
+     */
+    CONTAINS((tokens, query) -> tokens.containsAll(tokenize(query))),
+
+    /**
+     * Whether one of the tokens of the text starts with the query
+     */
+    PREFIX((tokens, query) -> {
+        String prefix = query.toLowerCase();
+        return tokens.stream().anyMatch(token -> token.startsWith(prefix));
+    }),
+
+    /**
+     * Whether one of the tokens of the text matches the query regular expression
+     */
+    REGEX((tokens, query) -> {
+        Pattern pattern = Pattern.compile(query);
+        return tokens.stream().anyMatch(token -> pattern.matcher(token).matches());
+    }),
+
+    /**
+     * Whether one of the tokens of the text is within the automatic edit distance of the query
+     */
+    FUZZY((tokens, query) -> {
+        String term = query.toLowerCase();
+        int maxEdits = maxEdits(term);
+        return tokens.stream().anyMatch(token -> editDistance(token, term) <= maxEdits);
+    }),
+
+    /**
+     * Whether the text contains the tokens of the query consecutively and in order
+     */
+    PHRASE((tokens, query) -> Collections.indexOfSubList(tokens, tokenize(query)) >= 0);
+
+    /**
+     * The test function for the tokens of the text.
+     */
+    private BiFunction<List<String>, String, Boolean> testFunc;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+
+    /**
+     * Constructs Text.
+     *
+     * @param testFunc the tokens test function.
+     */
+    Text(BiFunction<List<String>, String, Boolean> testFunc) {
+
+        this.testFunc = testFunc;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+
+    @Override
+    public boolean test(Object o, Object o2) {
+        if (o == null || o2 == null) return false;
+        return testFunc.apply(tokenize(o.toString()), o2.toString());
+    }
+
+    /**
+     * Splits a text into lowercase tokens.
+     *
+     * @param text the text to split.
+     * @return the tokens of the text.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+"))
+            if (!token.isEmpty()) tokens.add(token);
+        return tokens;
+    }
+
+    /**
+     * Gets the number of edits a fuzzy term allows, like the AUTO fuzziness of elasticsearch.
+     *
+     * @param term the fuzzy term.
+     * @return the maximal edit distance.
+     */
+    private static int maxEdits(String term) {
+        if (term.length() <= 2) return 0;
+        if (term.length() <= 5) return 1;
+        return 2;
+    }
+
+    /**
+     * Computes the Levenshtein distance between two strings.
+     *
+     * @param first the first string.
+     * @param second the second string.
+     * @return the edit distance.
+     */
+    private static int editDistance(String first, String second) {
+        int[] previous = new int[second.length() + 1];
+        int[] current = new int[second.length() + 1];
+        for (int j = 0; j <= second.length(); j++) previous[j] = j;
+        for (int i = 1; i <= first.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= second.length(); j++) {
+                int substitution = previous[j - 1] + (first.charAt(i - 1) == second.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[second.length()];
+    }
+
+    public static <V> P<V> textContains(final V value) { return predicate(Text.CONTAINS, value); }
+    public static <V> P<V> textPrefix(final V value) { return predicate(Text.PREFIX, value); }
+    public static <V> P<V> textRegex(final V value) { return predicate(Text.REGEX, value); }
+    public static <V> P<V> textFuzzy(final V value) { return predicate(Text.FUZZY, value); }
+    public static <V> P<V> textPhrase(final V value) { return predicate(Text.PHRASE, value); }
+
+    @SuppressWarnings("unchecked")
+    private static <V> P<V> predicate(Text text, V value) {
+        // the predicates test any value, whatever the type of the P
+        return new P<>((BiPredicate<V, V>) (BiPredicate<?, ?>) text, value);
+    }
+}
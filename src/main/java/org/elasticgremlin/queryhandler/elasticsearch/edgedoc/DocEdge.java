@@ -1,10 +1,10 @@
 package org.elasticgremlin.queryhandler.elasticsearch.edgedoc;
 
 import org.apache.tinkerpop.gremlin.structure.*;
-import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticMutations;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.*;
 import org.elasticgremlin.structure.*;
 
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
 
 public class DocEdge extends BaseEdge {
@@ -15,7 +15,8 @@ public class DocEdge extends BaseEdge {
     public static String InLabel = "inLabel";
     private final ElasticMutations elasticMutations;
     private final String indexName;
-
+    private LazyGetter lazyGetter;
+    private Set<String> loadedKeys;
 
     public DocEdge(final Object id, final String label, Object[] keyValues, Vertex outV, Vertex inV, final ElasticGraph graph, ElasticMutations elasticMutations, String indexName) {
         super(id, label, keyValues, outV, inV, graph);
@@ -23,6 +24,36 @@ public class DocEdge extends BaseEdge {
         this.indexName = indexName;
     }
 
+    public void setPartial(LazyGetter lazyGetter, Collection<String> loadedKeys) {
+        this.lazyGetter = lazyGetter;
+        this.loadedKeys = new HashSet<>(loadedKeys);
+        lazyGetter.register(this, this.indexName);
+    }
+
+    private boolean isLoaded(String... keys) {
+        if (loadedKeys == null || keys.length == 0) return false;
+        for (String key : keys) if (!loadedKeys.contains(key)) return false;
+        return true;
+    }
+
+    @Override
+    public <V> Property<V> property(final String key) {
+        if (lazyGetter != null && !isLoaded(key)) lazyGetter.execute();
+        return super.property(key);
+    }
+
+    @Override
+    public Iterator<Property> properties(final String... propertyKeys) {
+        if (lazyGetter != null && !isLoaded(propertyKeys)) lazyGetter.execute();
+        return super.properties(propertyKeys);
+    }
+
+    @Override
+    public Set<String> keys() {
+        if (lazyGetter != null) lazyGetter.execute();
+        return super.keys();
+    }
+
     @Override
     protected void innerRemoveProperty(Property property) {
         try {
@@ -3,6 +3,7 @@ package org.elasticgremlin.queryhandler.elasticsearch.edgedoc;
 import org.apache.tinkerpop.gremlin.process.traversal.P;
 import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
 import org.apache.tinkerpop.gremlin.structure.*;
+import org.apache.tinkerpop.gremlin.util.iterator.IteratorUtils;
 import org.elasticgremlin.queryhandler.*;
 import org.elasticgremlin.queryhandler.elasticsearch.helpers.*;
 import org.elasticgremlin.structure.*;
@@ -12,8 +13,11 @@ import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.javatuples.Pair;
 
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * The handler for handling document as an edge.
@@ -43,20 +47,35 @@ public class DocEdgeHandler implements EdgeHandler {
     private final String indexName;
 
     /**
-     * The scroll size.
+     * The concrete index and the id of every shard the index name resolves to.
      */
-    private final int scrollSize;
+    private final List<Pair<String, Integer>> indexShards;
 
     /**
-     * The refresh flag.
+     * The scroll settings.
      */
-    private final boolean refresh;
+    private final ScrollSettings scrollSettings;
+
+    /**
+     * Refreshes the index before reads that follow writes.
+     */
+    private final IndexRefresher refresher;
+
+    /**
+     * The cache of the query results.
+     */
+    private final QueryCache queryCache;
 
     /**
      * The timing accessor.
      */
     private TimingAccessor timing;
 
+    /**
+     * The lazy getter completing partially fetched edges.
+     */
+    private LazyGetter lazyGetter;
+
 
     ////////////////////////////////////////////////////////////////////////////
     // Constructors
@@ -68,18 +87,23 @@ public class DocEdgeHandler implements EdgeHandler {
      * @param client the client.
      * @param elasticMutations the elastic mutations.
      * @param indexName the index name.
-     * @param scrollSize the scroll size.
-     * @param refresh the refresh flag.
+     * @param indexShards the concrete index and the id of every shard the index name resolves to.
+     * @param scrollSettings the scroll settings.
+     * @param refresher refreshes the index before reads that follow writes.
+     * @param queryCache the cache of the query results.
      * @param timing the timing accessor.
      */
     public DocEdgeHandler(ElasticGraph graph, Client client, ElasticMutations elasticMutations, String indexName,
-                          int scrollSize, boolean refresh, TimingAccessor timing) {
+                          List<Pair<String, Integer>> indexShards,
+                          ScrollSettings scrollSettings, IndexRefresher refresher, QueryCache queryCache, TimingAccessor timing) {
         this.graph = graph;
         this.client = client;
         this.elasticMutations = elasticMutations;
         this.indexName = indexName;
-        this.scrollSize = scrollSize;
-        this.refresh = refresh;
+        this.indexShards = indexShards;
+        this.scrollSettings = scrollSettings;
+        this.refresher = refresher;
+        this.queryCache = queryCache;
         this.timing = timing;
     }
 
@@ -89,15 +113,20 @@ public class DocEdgeHandler implements EdgeHandler {
 
     @Override
     public Iterator<Edge> edges() {
-        return new QueryIterator<>(QueryBuilders.existsQuery(DocEdge.InId), 0, scrollSize, Integer.MAX_VALUE,
-                client, this::createEdge, refresh, timing, indexName);
+        if (scrollSettings.parallel)
+            return new ShardScanIterator<>(QueryBuilders.existsQuery(DocEdge.InId), null, scrollSettings,
+                    client, hits -> createEdge(hits, null), refresher, timing, indexName, indexShards);
+        return new QueryIterator<>(QueryBuilders.existsQuery(DocEdge.InId), 0, scrollSettings, Integer.MAX_VALUE,
+                client, hits -> createEdge(hits, null), refresher, timing, indexName);
     }
 
     @Override
     public Iterator<Edge> edges(Object[] ids) {
-        MultiGetRequest request = new MultiGetRequest().refresh(refresh);
+        // gets are realtime, they read the latest writes without refreshing the index
+        MultiGetRequest request = new MultiGetRequest();
         for (Object id : ids) request.add(indexName, null, id.toString());
         MultiGetResponse responses = client.multiGet(request).actionGet();
+        ElasticMetrics.multiGet(ElasticMetrics.current(), responses);
 
         ArrayList<Edge> elements = new ArrayList<>(ids.length);
         for (MultiGetItemResponse getResponse : responses) {
@@ -110,10 +139,84 @@ public class DocEdgeHandler implements EdgeHandler {
 
     @Override
     public Iterator<Edge> edges(Predicates predicates) {
-        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates.hasContainers);
+        String[] includes = null;
+        if (!predicates.includes.isEmpty()) {
+            // the vertex fields are needed to build the edge itself
+            List<String> fields = new ArrayList<>(predicates.includes);
+            Collections.addAll(fields, DocEdge.OutId, DocEdge.OutLabel, DocEdge.InId, DocEdge.InLabel);
+            includes = fields.toArray(new String[fields.size()]);
+        }
+        String[] fetchedFields = includes;
+        return queryCache.get(this, predicates, hits -> createEdge(hits, fetchedFields),
+                convertFunc -> search(predicates, fetchedFields, convertFunc));
+    }
+
+    /**
+     * Searches the edges matching the predicates.
+     *
+     * @param predicates the predicates.
+     * @param includes the source fields to fetch, null for the whole source.
+     * @param convertFunc the conversion function.
+     * @return the edges.
+     */
+    private Iterator<Edge> search(Predicates predicates, String[] includes,
+                                  Function<Iterator<SearchHit>, Iterator<? extends Edge>> convertFunc) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+        boolFilter.must(QueryBuilders.existsQuery(DocEdge.InId));
+        if (scrollSettings.isParallelScan(predicates.orders, predicates.limitLow, predicates.limitHigh - predicates.limitLow,
+                ElasticHelper.getExpectedHits(predicates)))
+            return new ShardScanIterator<>(boolFilter, includes, scrollSettings,
+                    client, convertFunc, refresher, timing, indexName, indexShards);
+        return new QueryIterator<>(boolFilter, predicates.orders, includes, predicates.limitLow, scrollSettings,
+                predicates.limitHigh - predicates.limitLow, ElasticHelper.getExpectedHits(predicates), client,
+                convertFunc, refresher, timing, indexName);
+    }
+
+    /**
+     * Counts the edges matching the predicates.
+     *
+     * @param predicates the predicates.
+     * @return the number of matching edges, regardless of the predicates' range.
+     */
+    public long count(Predicates predicates) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
         boolFilter.must(QueryBuilders.existsQuery(DocEdge.InId));
-        return new QueryIterator<>(boolFilter, 0, scrollSize, predicates.limitHigh - predicates.limitLow,
-                client, this::createEdge, refresh, timing, indexName);
+        timing.start("count");
+        long count = ElasticHelper.count(client, boolFilter, refresher, indexName);
+        timing.stop("count");
+        return count;
+    }
+
+    /**
+     * Counts the edges matching the predicates per value of a property.
+     *
+     * @param predicates the predicates.
+     * @param key the property key, or the label accessor.
+     * @return the number of matching edges per value.
+     */
+    public Map<Object, Long> groupCount(Predicates predicates, String key) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+        boolFilter.must(QueryBuilders.existsQuery(DocEdge.InId));
+        timing.start("groupCount");
+        Map<Object, Long> groups = ElasticHelper.groupCount(client, boolFilter, key, refresher, indexName);
+        timing.stop("groupCount");
+        return groups;
+    }
+
+    /**
+     * Computes the statistics of a numeric property over the edges matching the predicates.
+     *
+     * @param predicates the predicates.
+     * @param key the property key.
+     * @return the statistics of the property's values.
+     */
+    public Stats stats(Predicates predicates, String key) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+        boolFilter.must(QueryBuilders.existsQuery(DocEdge.InId));
+        timing.start("stats");
+        Stats stats = ElasticHelper.stats(client, boolFilter, key, refresher, indexName);
+        timing.stop("stats");
+        return stats;
     }
 
     @Override
@@ -121,11 +224,109 @@ public class DocEdgeHandler implements EdgeHandler {
         Map<Object, Vertex> idToVertex = new HashMap<>();
         vertices.forEachRemaining(singleVertex -> idToVertex.put(singleVertex.id(), singleVertex));
 
+        Object[] vertexIds = idToVertex.keySet().toArray();
+        BoolQueryBuilder boolFilter = createEdgesFilter(vertexIds, direction, edgeLabels, predicates);
+
+        QueryIterator<Edge> edgeQueryIterator = new QueryIterator<>(boolFilter, 0, scrollSettings, Long.MAX_VALUE, client, hits -> createEdge(hits, null), refresher, timing, indexName);
+
+        // the range applies to each vertex separately, stop scrolling once every vertex got its share
+        Map<Object, Long> counts = new HashMap<>();
+        long fullVertices = 0;
+        Map<Object, Set<Edge>> results = new HashMap<>();
+        while (fullVertices < vertexIds.length && edgeQueryIterator.hasNext()) {
+            Edge edge = edgeQueryIterator.next();
+            Set<Object> edgeVertexIds = new HashSet<>();
+            edge.vertices(direction).forEachRemaining(vertex -> edgeVertexIds.add(vertex.id()));
+            for (Object vertexId : edgeVertexIds) {
+                if (!idToVertex.containsKey(vertexId)) continue;
+                long count = counts.getOrDefault(vertexId, 0L);
+                counts.put(vertexId, count + 1);
+                if (count + 1 == predicates.limitHigh) fullVertices++;
+                if (count < predicates.limitLow || count >= predicates.limitHigh) continue;
+
+                Set<Edge> resultEdges = results.get(vertexId);
+                if (resultEdges == null) {
+                    resultEdges = new HashSet<>();
+                    results.put(vertexId, resultEdges);
+                }
+                resultEdges.add(edge);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Gets the vertices at the other end of the edges passing the predicates, without building the edges.
+     * Only the vertex fields of the edge documents are fetched, the adjacent vertices are completed lazily in batches.
+     *
+     * @param vertices the vertices.
+     * @param direction the direction of the edges.
+     * @param edgeLabels the labels of the edges.
+     * @param predicates the predicates of the edges.
+     * @return map of vertex id to its adjacent vertices, one per matching edge.
+     */
+    public Map<Object, List<Vertex>> adjacentVertices(Iterator<BaseVertex> vertices, Direction direction, String[] edgeLabels, Predicates predicates) {
+        Set<Object> vertexIds = new HashSet<>();
+        vertices.forEachRemaining(singleVertex -> vertexIds.add(singleVertex.id()));
+
+        BoolQueryBuilder boolFilter = createEdgesFilter(vertexIds.toArray(), direction, edgeLabels, predicates);
+        String[] includes = direction == Direction.OUT ? new String[]{DocEdge.OutId, DocEdge.InId, DocEdge.InLabel} :
+                direction == Direction.IN ? new String[]{DocEdge.InId, DocEdge.OutId, DocEdge.OutLabel} :
+                new String[]{DocEdge.OutId, DocEdge.OutLabel, DocEdge.InId, DocEdge.InLabel};
+        QueryIterator<SearchHit> hits = new QueryIterator<>(boolFilter, Collections.emptyList(), includes, 0, scrollSettings,
+                Long.MAX_VALUE, Long.MAX_VALUE, client, pageHits -> pageHits, refresher, timing, indexName);
+
+        Map<Object, BaseVertex> idToAdjacent = new HashMap<>();
+        Map<Object, List<Vertex>> results = new HashMap<>();
+        while (hits.hasNext()) {
+            Map<String, Object> fields = hits.next().getSource();
+            Object outId = fields.get(DocEdge.OutId);
+            Object inId = fields.get(DocEdge.InId);
+            if (direction != Direction.IN && vertexIds.contains(outId))
+                addAdjacent(results, idToAdjacent, outId, inId, fields.get(DocEdge.InLabel), Direction.IN);
+            // a self loop is a single adjacency, like in edges(...)
+            if (direction != Direction.OUT && vertexIds.contains(inId) && !(direction == Direction.BOTH && inId.equals(outId)))
+                addAdjacent(results, idToAdjacent, inId, outId, fields.get(DocEdge.OutLabel), Direction.OUT);
+        }
+        return results;
+    }
+
+    /**
+     * Adds an adjacent vertex, built once per id.
+     *
+     * @param results the adjacent vertices of each vertex.
+     * @param idToAdjacent the adjacent vertices built so far.
+     * @param vertexId the vertex id.
+     * @param adjacentId the adjacent vertex id.
+     * @param adjacentLabel the adjacent vertex label.
+     * @param direction the direction of the adjacent vertex on the edge.
+     */
+    private void addAdjacent(Map<Object, List<Vertex>> results, Map<Object, BaseVertex> idToAdjacent, Object vertexId,
+                             Object adjacentId, Object adjacentLabel, Direction direction) {
+        BaseVertex adjacent = idToAdjacent.computeIfAbsent(adjacentId, id ->
+                graph.getQueryHandler().vertex(id, adjacentLabel.toString(), null, direction));
+        results.computeIfAbsent(vertexId, id -> new ArrayList<>()).add(adjacent);
+    }
+
+    /**
+     * Creates the filter of the edges of the vertices.
+     *
+     * @param vertexIds the vertex ids.
+     * @param direction the direction of the edges.
+     * @param edgeLabels the labels of the edges.
+     * @param predicates the predicates of the edges.
+     * @return the bool filter.
+     */
+    private BoolQueryBuilder createEdgesFilter(Object[] vertexIds, Direction direction, String[] edgeLabels, Predicates predicates) {
+        // the predicates are part of the vertices' edge query cache key, they must not be changed
+        Predicates edgePredicates = new Predicates();
+        edgePredicates.hasContainers.addAll(predicates.hasContainers);
+        edgePredicates.boolContainers.addAll(predicates.boolContainers);
         if (edgeLabels != null && edgeLabels.length > 0)
-            predicates.hasContainers.add(new HasContainer(T.label.getAccessor(), P.within(edgeLabels)));
+            edgePredicates.hasContainers.add(new HasContainer(T.label.getAccessor(), P.within(edgeLabels)));
 
-        Object[] vertexIds = idToVertex.keySet().toArray();
-        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates.hasContainers);
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(edgePredicates, queryCache);
         if (direction == Direction.IN)
             boolFilter.must(QueryBuilders.termsQuery(DocEdge.InId, vertexIds));
         else if (direction == Direction.OUT)
@@ -134,20 +335,7 @@ public class DocEdgeHandler implements EdgeHandler {
             boolFilter.must(QueryBuilders.orQuery(
                     QueryBuilders.termsQuery(DocEdge.InId, vertexIds),
                     QueryBuilders.termsQuery(DocEdge.OutId, vertexIds)));
-
-        QueryIterator<Edge> edgeQueryIterator = new QueryIterator<>(boolFilter, 0, scrollSize, predicates.limitHigh - predicates.limitLow, client, this::createEdge , refresh, timing, indexName);
-
-        Map<Object, Set<Edge>> results = new HashMap<>();
-        edgeQueryIterator.forEachRemaining(edge -> edge.vertices(direction).forEachRemaining(vertex -> {
-            Set<Edge> resultEdges = results.get(vertex.id());
-            if (resultEdges == null) {
-                resultEdges = new HashSet<>();
-                results.put(vertex.id(), resultEdges);
-            }
-            resultEdges.add(edge);
-        }));
-
-        return results;
+        return boolFilter;
     }
 
     @Override
@@ -166,19 +354,46 @@ public class DocEdgeHandler implements EdgeHandler {
      * Creates the edge.
      *
      * @param hits search hits.
+     * @param includes the fetched source fields, null if the whole source was fetched.
      * @return iterator of edge created.
      */
-    private Iterator<Edge> createEdge(Iterator<SearchHit> hits) {
-        ArrayList<Edge> edges = new ArrayList<>();
-        hits.forEachRemaining(hit -> {
-            Map<String, Object> fields = hit.getSource();
-            BaseVertex outVertex = graph.getQueryHandler().vertex(fields.get(DocEdge.OutId), fields.get(DocEdge.OutLabel).toString(), null, Direction.OUT);
-            BaseVertex inVertex = graph.getQueryHandler().vertex(fields.get(DocEdge.InId), fields.get(DocEdge.InLabel).toString(), null, Direction.IN);
-            BaseEdge edge = new DocEdge(hit.getId(), hit.getType(), null, outVertex, inVertex, graph, elasticMutations, indexName);
-            fields.entrySet().forEach((field) -> edge.addPropertyLocal(field.getKey(), field.getValue()));
-            edges.add(edge);
-        });
-        return edges.iterator();
+    private Iterator<Edge> createEdge(Iterator<SearchHit> hits, String[] includes) {
+        if (includes == null) return IteratorUtils.map(hits, hit -> createEdge(hit, includes));
+        // partial edges are kept in a page, so the rest of their sources is fetched for the whole page at once
+        return new LazyPage<Edge>(hits, (hit, page) -> {
+            Edge edge = createEdge(hit, includes);
+            getLazyGetter().register(page);
+            return edge;
+        }).iterator();
+    }
+
+    /**
+     * Creates an edge from a hit.
+     *
+     * @param hit the hit.
+     * @param includes the source fields the hit was fetched with, null for the whole source.
+     * @return the edge.
+     */
+    private Edge createEdge(SearchHit hit, String[] includes) {
+        Map<String, Object> fields = hit.getSource();
+        BaseVertex outVertex = graph.getQueryHandler().vertex(fields.get(DocEdge.OutId), fields.get(DocEdge.OutLabel).toString(), null, Direction.OUT);
+        BaseVertex inVertex = graph.getQueryHandler().vertex(fields.get(DocEdge.InId), fields.get(DocEdge.InLabel).toString(), null, Direction.IN);
+        DocEdge edge = new DocEdge(hit.getId(), hit.getType(), null, outVertex, inVertex, graph, elasticMutations, indexName);
+        if (includes != null) edge.setPartial(getLazyGetter(), Arrays.asList(includes));
+        fields.entrySet().forEach((field) -> edge.addPropertyLocal(field.getKey(), field.getValue()));
+        return edge;
+    }
+
+    /**
+     * Gets lazy getter.
+     *
+     * @return lazy getter.
+     */
+    private LazyGetter getLazyGetter() {
+        if (lazyGetter == null || !lazyGetter.canRegister()) {
+            lazyGetter = new LazyGetter(client, timing);
+        }
+        return lazyGetter;
     }
 
     /**
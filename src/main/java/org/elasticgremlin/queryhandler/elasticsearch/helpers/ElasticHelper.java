@@ -1,23 +1,41 @@
 package org.elasticgremlin.queryhandler.elasticsearch.helpers;
 
 import org.apache.tinkerpop.gremlin.process.traversal.*;
-import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.*;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.queryhandler.*;
 import org.elasticgremlin.queryhandler.elasticsearch.Geo;
+import org.elasticgremlin.queryhandler.elasticsearch.Text;
 import org.elasticsearch.action.admin.cluster.health.*;
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsGroup;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.*;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsResponse;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsResponse.FieldMappingMetaData;
+import org.elasticsearch.action.search.*;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.geo.builders.ShapeBuilder;
 import org.elasticsearch.common.settings.*;
-import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.unit.*;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.*;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.index.query.*;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.javatuples.Pair;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiPredicate;
 
 /**
@@ -25,7 +43,6 @@ import java.util.function.BiPredicate;
  */
 public class ElasticHelper {
 
-
     ////////////////////////////////////////////////////////////////////////////
     // Methods
 
@@ -55,6 +72,53 @@ public class ElasticHelper {
         }
     }
 
+    /**
+     * Gets the shards an index name resolves to, for an alias or a pattern the shards of all its concrete indices.
+     *
+     * @param indexName the index name, alias or pattern.
+     * @param client the client.
+     * @return the concrete index and the id of every shard.
+     * @throws IOException when the name resolves to no shards.
+     */
+    public static List<Pair<String, Integer>> getShards(String indexName, Client client) throws IOException {
+        ClusterSearchShardsGroup[] groups = client.admin().cluster().prepareSearchShards(indexName).get().getGroups();
+        if (groups.length == 0) throw new IOException("no shards found for index '" + indexName + "'");
+        List<Pair<String, Integer>> shards = new ArrayList<>(groups.length);
+        for (ClusterSearchShardsGroup group : groups) shards.add(new Pair<>(group.getIndex(), group.getShardId()));
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Whether a property is mapped as a string with an analyzer that splits it into tokens, in every type of the index mapping it.
+     * The text predicates search such a property the way they test it in memory, while the default keyword analyzer
+     * keeps the whole text as a single term.
+     *
+     * @param client the client.
+     * @param indexName the index name.
+     * @param key the property key.
+     * @return whether the property is analyzed, false when it isn't mapped at all.
+     */
+    public static boolean isAnalyzed(Client client, String indexName, String key) {
+        GetFieldMappingsResponse response = client.admin().indices().prepareGetFieldMappings(indexName).setFields(key).get();
+        boolean mapped = false;
+        for (String index : response.mappings().keySet()) {
+            String defaultAnalyzer = client.admin().indices().prepareGetSettings(index).get()
+                    .getSetting(index, "index.analysis.analyzer.default.type");
+            for (Map<String, FieldMappingMetaData> fields : response.mappings().get(index).values()) {
+                FieldMappingMetaData field = fields.get(key);
+                if (field == null || field.isNull()) continue;
+                Object mapping = field.sourceAsMap().get(key);
+                if (!(mapping instanceof Map)) return false;
+                Map<?, ?> properties = (Map<?, ?>) mapping;
+                Object analyzer = properties.containsKey("analyzer") ? properties.get("analyzer") : defaultAnalyzer;
+                if (!"string".equals(properties.get("type")) || "not_analyzed".equals(properties.get("index")) ||
+                        "no".equals(properties.get("index")) || "keyword".equals(analyzer)) return false;
+                mapped = true;
+            }
+        }
+        return mapped;
+    }
+
     /**
      * Clears the index.
      *
@@ -68,89 +132,567 @@ public class ElasticHelper {
                 .actionGet();
     }
 
+    /**
+     * Prepares a search over the documents matching the filter, annotating the query of a profiled step.
+     *
+     * @param client the client.
+     * @param filter the filter.
+     * @param indices the indices.
+     * @return the search request.
+     */
+    private static SearchRequestBuilder search(Client client, QueryBuilder filter, String... indices) {
+        QueryBuilder query = QueryBuilders.boolQuery().must(QueryBuilders.matchAllQuery()).filter(filter);
+        ElasticMetrics.query(ElasticMetrics.current(), query);
+        return client.prepareSearch(indices).setQuery(query);
+    }
+
+    /**
+     * Counts the documents matching the filter, without fetching any of them.
+     *
+     * @param client the client.
+     * @param filter the filter.
+     * @param refresher refreshes the indices before reads that follow writes.
+     * @param indices the indices.
+     * @return the number of matching documents.
+     */
+    public static long count(Client client, QueryBuilder filter, IndexRefresher refresher, String... indices) {
+        refresher.refresh(indices);
+        SearchResponse response = search(client, filter, indices)
+                .setSize(0)
+                .execute().actionGet();
+        ElasticMetrics.search(ElasticMetrics.current(), ElasticMetrics.SEARCHES, response);
+        return response.getHits().getTotalHits();
+    }
+
+    /**
+     * Counts the documents matching the filter per distinct value of a field, using a terms aggregation.
+     *
+     * @param client the client.
+     * @param filter the filter.
+     * @param key the property key, or the label accessor to group by the document type.
+     * @param refresher refreshes the indices before reads that follow writes.
+     * @param indices the indices.
+     * @return the number of matching documents per value.
+     */
+    public static Map<Object, Long> groupCount(Client client, QueryBuilder filter, String key, IndexRefresher refresher, String... indices) {
+        refresher.refresh(indices);
+        boolean label = key.equals(T.label.getAccessor());
+        TermsBuilder termsBuilder = AggregationBuilders.terms("groupCount").field(label ? "_type" : key).size(0);
+        // the bucket keys are indexed terms, a document of every bucket tells the type of the source values
+        if (!label) termsBuilder.subAggregation(AggregationBuilders.topHits("source").setSize(1).setFetchSource(new String[]{key}, null));
+        SearchResponse response = search(client, filter, indices)
+                .setSize(0)
+                .addAggregation(termsBuilder)
+                .execute().actionGet();
+        ElasticMetrics.search(ElasticMetrics.current(), ElasticMetrics.SEARCHES, response);
+
+        Map<Object, Long> groups = new HashMap<>();
+        Terms terms = response.getAggregations().get("groupCount");
+        terms.getBuckets().forEach(bucket -> groups.put(label ? bucket.getKeyAsString() : getBucketKey(bucket, key), bucket.getDocCount()));
+        return groups;
+    }
+
+    /**
+     * Computes the statistics of a numeric field over the documents matching the filter, using a stats aggregation.
+     *
+     * @param client the client.
+     * @param filter the filter.
+     * @param key the property key.
+     * @param refresher refreshes the indices before reads that follow writes.
+     * @param indices the indices.
+     * @return the count, sum, average, min and max of the field's values.
+     */
+    public static Stats stats(Client client, QueryBuilder filter, String key, IndexRefresher refresher, String... indices) {
+        refresher.refresh(indices);
+        SearchResponse response = search(client, filter, indices)
+                .setSize(0)
+                .addAggregation(AggregationBuilders.stats("stats").field(key))
+                .execute().actionGet();
+        ElasticMetrics.search(ElasticMetrics.current(), ElasticMetrics.SEARCHES, response);
+        return response.getAggregations().get("stats");
+    }
+
+    /**
+     * Gets the bucket key as it's read from the documents' source, so it has the same type as the elements' values.
+     * The indexed terms of numbers are longs or doubles, and those of booleans are 0 and 1.
+     *
+     * @param bucket the terms bucket, with a top hit of its documents.
+     * @param key the property key.
+     * @return the key.
+     */
+    private static Object getBucketKey(Terms.Bucket bucket, String key) {
+        Object bucketKey = bucket.getKey();
+        TopHits topHits = bucket.getAggregations().get("source");
+        if (topHits == null || topHits.getHits().getHits().length == 0) return bucketKey;
+        Map<String, Object> source = topHits.getHits().getAt(0).getSource();
+        Object value = source == null ? null : source.get(key);
+        for (Object candidate : value instanceof Collection ? (Collection<?>) value : Collections.singletonList(value))
+            if (candidate != null && isBucketKey(candidate, bucket)) return candidate;
+        return bucketKey;
+    }
+
+    /**
+     * Whether a source value is the one indexed as the bucket's key.
+     *
+     * @param value the source value.
+     * @param bucket the terms bucket.
+     * @return whether the value is the bucket's key.
+     */
+    private static boolean isBucketKey(Object value, Terms.Bucket bucket) {
+        Object bucketKey = bucket.getKey();
+        if (value instanceof Boolean && bucketKey instanceof Number) return ((Boolean) value ? 1 : 0) == ((Number) bucketKey).longValue();
+        if (!(value instanceof Number) || !(bucketKey instanceof Number)) return value.toString().equals(bucket.getKeyAsString());
+        if (value instanceof Double || value instanceof Float || bucketKey instanceof Double)
+            return ((Number) value).doubleValue() == ((Number) bucketKey).doubleValue();
+        return ((Number) value).longValue() == ((Number) bucketKey).longValue();
+    }
+
     /**
      * Creates a bool filter builder.
      * @param hasContainers the list of has container
      * @return bool filter builder
      */
     public static BoolQueryBuilder createFilterBuilder(List<HasContainer> hasContainers) {
+        Clauses clauses = new Clauses();
+        if(hasContainers != null) hasContainers.forEach(clauses::add);
+        return clauses.toBoolQuery();
+    }
+
+    /**
+     * Creates a bool filter builder of the predicates, including their nested bool containers.
+     * @param predicates the predicates
+     * @return bool filter builder
+     */
+    public static BoolQueryBuilder createFilterBuilder(Predicates predicates) {
         BoolQueryBuilder boolFilter = QueryBuilders.boolQuery();
-        if(hasContainers != null) hasContainers.forEach(has -> addFilter(boolFilter, has));
+        if (predicates.hasContainers.isEmpty() && predicates.boolContainers.isEmpty()) return boolFilter;
+        return boolFilter.filter(createCanonicalFilter(predicates));
+    }
+
+    /**
+     * Creates a bool filter builder of the predicates, including their nested bool containers.
+     * The canonical filter of the predicates is built and serialized once per graph, and repeated predicates reuse its bytes.
+     * @param predicates the predicates
+     * @param queryCache the graph's query cache, which memoizes the filters
+     * @return bool filter builder
+     */
+    public static BoolQueryBuilder createFilterBuilder(Predicates predicates, QueryCache queryCache) {
+        BoolQueryBuilder boolFilter = QueryBuilders.boolQuery();
+        if (predicates.hasContainers.isEmpty() && predicates.boolContainers.isEmpty()) return boolFilter;
+
+        // only the filtering parts of the predicates make the key, the limits, orders and includes don't change the filter
+        Predicates key = new Predicates();
+        key.hasContainers.addAll(predicates.hasContainers);
+        key.boolContainers.addAll(predicates.boolContainers);
+        return boolFilter.filter(queryCache.getFilter(key, filterPredicates -> new SerializedQueryBuilder(createCanonicalFilter(filterPredicates))));
+    }
+
+    /**
+     * Creates the canonical filter of the predicates, whose clauses are sorted so equal predicates get the same filter.
+     * @param predicates the predicates
+     * @return the canonical filter
+     */
+    private static BoolQueryBuilder createCanonicalFilter(Predicates predicates) {
+        BoolQueryBuilder canonicalFilter = createFilterBuilder(predicates.hasContainers);
+        predicates.boolContainers.forEach(boolContainer -> canonicalFilter.filter(createFilterBuilder(boolContainer)));
+        return canonicalFilter;
+    }
+
+    /**
+     * Creates a filter of a bool container, its clauses become filter, should or must_not clauses.
+     * Under OR, the eq and within clauses of the same key are merged into a single terms clause.
+     * @param boolContainer the bool container
+     * @return the filter
+     */
+    private static QueryBuilder createFilterBuilder(BoolContainer boolContainer) {
+        if (boolContainer.type == BoolContainer.Type.AND) {
+            Clauses clauses = new Clauses();
+            boolContainer.hasContainers.forEach(clauses::add);
+            boolContainer.children.forEach(child -> clauses.filters.add(createFilterBuilder(child)));
+            return clauses.toBoolQuery();
+        }
+
+        List<QueryBuilder> clauses = new ArrayList<>();
+        Map<String, Set<Object>> termValues = new TreeMap<>();
+        boolContainer.hasContainers.forEach(has -> {
+            if (boolContainer.type == BoolContainer.Type.OR && !has.getKey().startsWith("~") && has.getValue() != null &&
+                    (has.getBiPredicate() == Compare.eq || has.getBiPredicate() == Contains.within))
+                termValues.computeIfAbsent(has.getKey(), key -> new LinkedHashSet<>()).addAll(getValues(has.getValue()));
+            else clauses.add(createClause(has));
+        });
+        termValues.forEach((key, values) -> clauses.add(createTermsQuery(key, values)));
+        boolContainer.children.forEach(child -> clauses.add(createFilterBuilder(child)));
+
+        BoolQueryBuilder boolFilter = QueryBuilders.boolQuery();
+        if (boolContainer.type == BoolContainer.Type.OR) {
+            sort(clauses).forEach(boolFilter::should);
+            boolFilter.minimumNumberShouldMatch(1);
+        }
+        else sort(clauses).forEach(boolFilter::mustNot);
         return boolFilter;
     }
 
     /**
-     * Adds filter to the filter builder.
+     * Creates the single clause of a has container.
+     * @param has the has container
+     * @return the clause, a bool filter when the has container needs a must_not clause
+     */
+    private static QueryBuilder createClause(HasContainer has) {
+        Clauses clauses = new Clauses();
+        clauses.add(has);
+        if (clauses.filters.size() == 1 && clauses.mustNots.isEmpty() && clauses.ranges.isEmpty() && clauses.notValues.isEmpty())
+            return clauses.filters.get(0);
+        return clauses.toBoolQuery();
+    }
+
+    /**
+     * Adds the sort clauses of the orders to the search request.
+     *
+     * @param searchRequest the search request.
+     * @param orders the ordered (key, order) pairs.
+     */
+    public static void addSorts(SearchRequestBuilder searchRequest, List<Pair<String, Order>> orders) {
+        // a key no document has yet isn't mapped, its documents sort like they miss the key instead of failing the search
+        orders.forEach(order -> searchRequest.addSort(SortBuilders
+                .fieldSort(order.getValue0().equals(T.id.getAccessor()) ? "_uid" : order.getValue0())
+                .order(order.getValue1().equals(Order.decr) ? SortOrder.DESC : SortOrder.ASC)
+                .unmappedType("long")));
+    }
+
+    /**
+     * Creates a comparator sorting elements the same way the sort clauses of the orders would.
+     *
+     * @param orders the ordered (key, order) pairs.
+     * @return the element comparator, or null when there are no orders.
+     */
+    public static Comparator<Element> createComparator(List<Pair<String, Order>> orders) {
+        Comparator<Element> comparator = null;
+        for (Pair<String, Order> order : orders) {
+            Comparator<Element> next = order.getValue0().equals(T.id.getAccessor()) ?
+                    new ElementFunctionComparator<>(T.id, order.getValue1()) :
+                    new ElementValueComparator<>(order.getValue0(), order.getValue1());
+            comparator = comparator == null ? next : comparator.thenComparing(next);
+        }
+        return comparator;
+    }
+
+    /**
+     * Whether a has container translates into a filter clause.
+     * Ids and labels are looked up by eq and within, properties by the compare, contains, geo and text predicates,
+     * while connective predicates like between() or outside() can only be tested in memory.
      *
-     * @param boolFilterBuilder the bool filter builder.
      * @param has the has container.
+     * @return whether the has container can be part of a search.
      */
-    private static void addFilter(BoolQueryBuilder boolFilterBuilder, HasContainer has){
-        String key = has.getKey();
-        Object value = has.getValue();
+    public static boolean isSupported(HasContainer has) {
         BiPredicate<?, ?> predicate = has.getBiPredicate();
+        Object value = has.getValue();
+        if (has.getKey().equals(T.id.getAccessor()) || has.getKey().equals(T.label.getAccessor()))
+            return value != null && (predicate == Compare.eq || predicate == Contains.within);
+        if (predicate instanceof Compare) return value != null;
+        if (predicate == Contains.within) return true;
+        // without() of values has no single clause, without() of nothing is a missing property
+        if (predicate == Contains.without) return value == null;
+        return (predicate instanceof Geo || predicate instanceof Text) && value != null;
+    }
+
+    /**
+     * Whether all the has containers of a bool container and its children translate into filter clauses.
+     *
+     * @param boolContainer the bool container.
+     * @return whether the bool container can be part of a search.
+     */
+    public static boolean isSupported(BoolContainer boolContainer) {
+        return boolContainer.hasContainers.stream().allMatch(ElasticHelper::isSupported) &&
+                boolContainer.children.stream().allMatch(ElasticHelper::isSupported);
+    }
 
-        if(key.equals("~id")) {
-            IdsQueryBuilder idsFilterBuilder = QueryBuilders.idsQuery();
-            if(value.getClass().isArray()) {
-                for(Object id : (Object[])value)
-                    idsFilterBuilder.addIds(id.toString());
+    /**
+     * Gets the most documents the predicates can match, when they look up ids.
+     *
+     * @param predicates the predicates.
+     * @return the number of ids looked up, Long.MAX_VALUE when the predicates don't look up ids.
+     */
+    public static long getExpectedHits(Predicates predicates) {
+        long expectedHits = Long.MAX_VALUE;
+        for (HasContainer has : predicates.hasContainers) {
+            if (!has.getKey().equals(T.id.getAccessor())) continue;
+            Object value = has.getValue();
+            if (has.getBiPredicate() == Compare.eq) expectedHits = Math.min(expectedHits, 1);
+            // the ids of within() may be any collection or array, primitive ones included
+            else if (has.getBiPredicate() == Contains.within && value instanceof Collection)
+                expectedHits = Math.min(expectedHits, ((Collection) value).size());
+            else if (has.getBiPredicate() == Contains.within && value != null && value.getClass().isArray())
+                expectedHits = Math.min(expectedHits, Array.getLength(value));
+        }
+        return expectedHits;
+    }
+
+    /**
+     * Gets the values of an eq or within predicate.
+     *
+     * @param value the predicate's value, a single value, an array or a collection.
+     * @return the values.
+     */
+    private static List<Object> getValues(Object value) {
+        if (value.getClass().isArray()) return Arrays.asList((Object[]) value);
+        if (value instanceof Collection) return new ArrayList<>((Collection<?>) value);
+        return Collections.singletonList(value);
+    }
+
+    /**
+     * Sorts the distinct values, when they're comparable to one another, so the same values make the same clause.
+     *
+     * @param values the values.
+     * @return the sorted distinct values.
+     */
+    private static List<Object> sortValues(Collection<?> values) {
+        List<Object> sorted = new ArrayList<>(new LinkedHashSet<>(values));
+        if (isComparable(sorted)) sorted.sort(ElasticHelper::compare);
+        return sorted;
+    }
+
+    /**
+     * Compares two values that are comparable to one another.
+     *
+     * @param first the first value.
+     * @param second the second value.
+     * @return the result of the first value's compareTo.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object first, Object second) {
+        return ((Comparable) first).compareTo(second);
+    }
+
+    /**
+     * Whether the values are comparable to one another: not null, comparable and of the same class.
+     *
+     * @param values the values.
+     * @return whether the values can be sorted.
+     */
+    private static boolean isComparable(Collection<?> values) {
+        Class<?> valueClass = null;
+        for (Object value : values) {
+            if (!(value instanceof Comparable) || (valueClass != null && valueClass != value.getClass())) return false;
+            valueClass = value.getClass();
+        }
+        return true;
+    }
+
+    /**
+     * Creates the term clause of a single value, or the terms clause of many.
+     *
+     * @param key the property key.
+     * @param values the values.
+     * @return the term or terms query.
+     */
+    private static QueryBuilder createTermsQuery(String key, Collection<?> values) {
+        List<Object> sorted = sortValues(values);
+        return sorted.size() == 1 ? QueryBuilders.termQuery(key, sorted.get(0)) : QueryBuilders.termsQuery(key, sorted);
+    }
+
+    /**
+     * Sorts clauses by their JSON, so the same clauses make the same query whatever order the traversal has them in.
+     *
+     * @param clauses the clauses.
+     * @return the sorted clauses.
+     */
+    private static List<QueryBuilder> sort(List<QueryBuilder> clauses) {
+        List<Pair<String, QueryBuilder>> keyed = new ArrayList<>();
+        clauses.forEach(clause -> keyed.add(Pair.with(clause.toString(), clause)));
+        keyed.sort(Comparator.comparing(Pair::getValue0));
+        List<QueryBuilder> sorted = new ArrayList<>();
+        keyed.forEach(pair -> sorted.add(pair.getValue1()));
+        return sorted;
+    }
+
+    /**
+     * Gets the range clauses of a key, merged into a single range when their bounds are comparable.
+     * The tighter bound wins, and an exclusive bound wins over an inclusive bound of the same value.
+     *
+     * @param key the property key.
+     * @param hasContainers the gt, gte, lt and lte has containers of the key.
+     * @return the range queries.
+     */
+    private static List<QueryBuilder> createRangeQueries(String key, List<HasContainer> hasContainers) {
+        List<Object> values = new ArrayList<>();
+        hasContainers.forEach(has -> values.add(has.getValue()));
+        if (!isComparable(values)) {
+            List<QueryBuilder> ranges = new ArrayList<>();
+            hasContainers.forEach(has -> ranges.add(createClause(has)));
+            return ranges;
+        }
+
+        Object from = null, to = null;
+        boolean includeLower = true, includeUpper = true;
+        for (HasContainer has : hasContainers) {
+            Object value = has.getValue();
+            BiPredicate<?, ?> predicate = has.getBiPredicate();
+            boolean inclusive = predicate == Compare.gte || predicate == Compare.lte;
+            if (predicate == Compare.gt || predicate == Compare.gte) {
+                int comparison = from == null ? 1 : compare(value, from);
+                if (comparison > 0) includeLower = inclusive;
+                else if (comparison == 0) includeLower &= inclusive;
+                if (comparison >= 0) from = value;
+            }
+            else {
+                int comparison = to == null ? -1 : compare(value, to);
+                if (comparison < 0) includeUpper = inclusive;
+                else if (comparison == 0) includeUpper &= inclusive;
+                if (comparison <= 0) to = value;
+            }
+        }
+        return Collections.singletonList(QueryBuilders.rangeQuery(key)
+                .from(from).includeLower(includeLower).to(to).includeUpper(includeUpper));
+    }
+
+    /**
+     * The clauses of a conjunction of has containers, canonicalized before they're built into a bool filter:
+     * the ranges of a key are merged, the neq values of a key make a single must_not clause,
+     * id and label values are sorted, and the clauses are sorted, so the same predicates always make the same query.
+     * All the positive clauses, labels included, are filter clauses: they're cacheable and don't score.
+     */
+    private static class Clauses {
+        private final List<QueryBuilder> filters = new ArrayList<>();
+        private final List<QueryBuilder> mustNots = new ArrayList<>();
+        private final Map<String, List<HasContainer>> ranges = new TreeMap<>();
+        private final Map<String, Set<Object>> notValues = new TreeMap<>();
+
+        /**
+         * Adds the clause of a has container.
+         *
+         * @param has the has container.
+         */
+        private void add(HasContainer has){
+            String key = has.getKey();
+            Object value = has.getValue();
+            BiPredicate<?, ?> predicate = has.getBiPredicate();
+
+            if(key.equals("~id")) {
+                List<String> ids = new ArrayList<>();
+                getValues(value).forEach(id -> ids.add(id.toString()));
+                List<Object> sortedIds = sortValues(ids);
+                filters.add(QueryBuilders.idsQuery().addIds(sortedIds.toArray(new String[sortedIds.size()])));
             }
-            else idsFilterBuilder.addIds(value.toString());
-            boolFilterBuilder.must(idsFilterBuilder);
-        }
-        else if(key.equals("~label")) {
-            if(value instanceof List){
-                List labels = (List) value;
-                if(labels.size() == 1)
-                    boolFilterBuilder.must(QueryBuilders.typeQuery(labels.get(0).toString()));
+            else if(key.equals("~label")) {
+                List<String> labels = new ArrayList<>();
+                (value instanceof List ? (List<?>) value : Collections.singletonList(value)).forEach(label -> labels.add(label.toString()));
+                List<Object> sortedLabels = sortValues(labels);
+                if(sortedLabels.size() == 1)
+                    filters.add(QueryBuilders.typeQuery(sortedLabels.get(0).toString()));
                 else {
-                    QueryBuilder[] filters = new QueryBuilder[labels.size()];
-                    for(int i = 0; i < labels.size(); i++)
-                        filters[i] = QueryBuilders.typeQuery(labels.get(i).toString());
-                    boolFilterBuilder.must(QueryBuilders.orQuery(filters));
+                    BoolQueryBuilder labelFilter = QueryBuilders.boolQuery().minimumNumberShouldMatch(1);
+                    sortedLabels.forEach(label -> labelFilter.should(QueryBuilders.typeQuery(label.toString())));
+                    filters.add(labelFilter);
                 }
             }
-            else boolFilterBuilder.must(QueryBuilders.typeQuery(value.toString()));
-        }
-        else if (predicate instanceof Compare) {
-            String predicateString = predicate.toString();
-            switch (predicateString) {
-                case ("eq"):
-                    boolFilterBuilder.must(QueryBuilders.termQuery(key, value));
-                    break;
-                case ("neq"):
-                    boolFilterBuilder.mustNot(QueryBuilders.termQuery(key, value));
-                    break;
-                case ("gt"):
-                    boolFilterBuilder.must(QueryBuilders.rangeQuery(key).gt(value));
-                    break;
-                case ("gte"):
-                    boolFilterBuilder.must(QueryBuilders.rangeQuery(key).gte(value));
-                    break;
-                case ("lt"):
-                    boolFilterBuilder.must(QueryBuilders.rangeQuery(key).lt(value));
-                    break;
-                case ("lte"):
-                    boolFilterBuilder.must(QueryBuilders.rangeQuery(key).lte(value));
-                    break;
-                case("inside"):
-                    List items =(List) value;
-                    Object firstItem = items.get(0);
-                    Object secondItem = items.get(1);
-                    boolFilterBuilder.must(QueryBuilders.rangeQuery(key).from(firstItem).to(secondItem));
-                    break;
-                default:
-                    throw new IllegalArgumentException("predicate not supported in has step: " + predicate.toString());
-            }
-        } else if (predicate instanceof Contains) {
-            if (predicate == Contains.without) boolFilterBuilder.must(QueryBuilders.missingQuery(key));
-            else if (predicate == Contains.within){
-                if(value == null) boolFilterBuilder.must(QueryBuilders.existsQuery(key));
-                else  boolFilterBuilder.must(QueryBuilders.termsQuery(key, value));
+            else if (predicate instanceof Compare) {
+                String predicateString = predicate.toString();
+                switch (predicateString) {
+                    case ("eq"):
+                        filters.add(QueryBuilders.termQuery(key, value));
+                        break;
+                    case ("neq"):
+                        notValues.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(value);
+                        break;
+                    case ("gt"):
+                    case ("gte"):
+                    case ("lt"):
+                    case ("lte"):
+                        ranges.computeIfAbsent(key, k -> new ArrayList<>()).add(has);
+                        break;
+                    case("inside"):
+                        List items =(List) value;
+                        Object firstItem = items.get(0);
+                        Object secondItem = items.get(1);
+                        filters.add(QueryBuilders.rangeQuery(key).from(firstItem).to(secondItem));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("predicate not supported in has step: " + predicate.toString());
+                }
+            } else if (predicate instanceof Contains) {
+                if (predicate == Contains.without) filters.add(QueryBuilders.missingQuery(key));
+                else if (predicate == Contains.within){
+                    if(value == null) filters.add(QueryBuilders.existsQuery(key));
+                    else filters.add(QueryBuilders.termsQuery(key, sortValues(getValues(value))));
+                }
+            } else if (predicate instanceof Geo) filters.add(new GeoShapeQueryBuilder(key, GetShapeBuilder(value), ((Geo) predicate).getRelation()));
+            else if (predicate instanceof Text) filters.add(getTextQuery(key, value.toString(), (Text) predicate));
+            else throw new IllegalArgumentException("predicate not supported by elastic-gremlin: " + predicate.toString());
+        }
+
+        /**
+         * Builds the canonical bool filter of the clauses.
+         *
+         * @return the bool filter.
+         */
+        private BoolQueryBuilder toBoolQuery() {
+            List<QueryBuilder> allFilters = new ArrayList<>(filters);
+            ranges.forEach((key, hasContainers) -> allFilters.addAll(createRangeQueries(key, hasContainers)));
+            List<QueryBuilder> allMustNots = new ArrayList<>(mustNots);
+            notValues.forEach((key, values) -> allMustNots.add(createTermsQuery(key, values)));
+
+            BoolQueryBuilder boolFilter = QueryBuilders.boolQuery();
+            sort(allFilters).forEach(boolFilter::filter);
+            sort(allMustNots).forEach(boolFilter::mustNot);
+            return boolFilter;
+        }
+    }
+
+    /**
+     * A query serialized once, whose bytes are written as is into every request that holds it.
+     * The bytes are kept per content type, since a raw field has to be in the content type of the request.
+     */
+    private static class SerializedQueryBuilder extends QueryBuilder {
+        private final BoolQueryBuilder query;
+        private final Map<XContentType, BytesReference> bytes = new ConcurrentHashMap<>();
+
+        private SerializedQueryBuilder(BoolQueryBuilder query) {
+            this.query = query;
+        }
+
+        @Override
+        protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+            BytesReference body = bytes.get(builder.contentType());
+            if (body == null) {
+                // the query writes itself as {"bool": {...}}, the body is the inner object
+                XContentBuilder queryBuilder = XContentFactory.contentBuilder(builder.contentType());
+                query.toXContent(queryBuilder, params);
+                try (XContentParser parser = XContentFactory.xContent(builder.contentType()).createParser(queryBuilder.bytes())) {
+                    parser.nextToken();
+                    parser.nextToken();
+                    parser.nextToken();
+                    body = XContentFactory.contentBuilder(builder.contentType()).copyCurrentStructure(parser).bytes();
+                }
+                bytes.put(builder.contentType(), body);
             }
-        } else if (predicate instanceof Geo) boolFilterBuilder.must(new GeoShapeQueryBuilder(key, GetShapeBuilder(value), ((Geo) predicate).getRelation()));
-        else throw new IllegalArgumentException("predicate not supported by elastic-gremlin: " + predicate.toString());
+            builder.rawField(BoolQueryParser.NAME, body);
+        }
+    }
+    /**
+     * Gets the query of a text predicate.
+     * Match queries are analyzed like the field, while the term level queries work on its lowercase tokens.
+     *
+     * @param key the property key.
+     * @param value the text of the predicate.
+     * @param predicate the text predicate.
+     * @return the text query.
+     */
+    private static QueryBuilder getTextQuery(String key, String value, Text predicate) {
+        switch (predicate) {
+            case CONTAINS:
+                return QueryBuilders.matchQuery(key, value).operator(MatchQueryBuilder.Operator.AND);
+            case PREFIX:
+                return QueryBuilders.prefixQuery(key, value.toLowerCase());
+            case REGEX:
+                return QueryBuilders.regexpQuery(key, value);
+            case FUZZY:
+                return QueryBuilders.fuzzyQuery(key, value.toLowerCase()).fuzziness(Fuzziness.AUTO).transpositions(false);
+            case PHRASE:
+                return QueryBuilders.matchPhraseQuery(key, value);
+            default:
+                throw new IllegalArgumentException("predicate not supported by elastic-gremlin: " + predicate.toString());
+        }
     }
 
     /**
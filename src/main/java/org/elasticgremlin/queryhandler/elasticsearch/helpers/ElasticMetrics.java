@@ -0,0 +1,216 @@
+package org.elasticgremlin.queryhandler.elasticsearch.helpers;
+
+import org.apache.tinkerpop.gremlin.process.traversal.util.MutableMetrics;
+import org.elasticsearch.action.get.*;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.function.Supplier;
+
+/**
+ * Reports the elasticsearch requests of a profiled traversal into the metrics of the step that issued them.
+ * A step sets its metrics as the current ones while it calls the query handler, and the requests made
+ * meanwhile (or later on behalf of an iterator created meanwhile) are counted in them.
+ */
+public class ElasticMetrics {
+
+    /**
+     * Count of search requests.
+     */
+    public static final String SEARCHES = "searches";
+
+    /**
+     * Count of scroll requests, after the initial search.
+     */
+    public static final String SCROLLS = "scrolls";
+
+    /**
+     * Count of multi get requests.
+     */
+    public static final String MULTI_GETS = "multiGets";
+
+    /**
+     * Count of documents returned by the requests.
+     */
+    public static final String HITS = "hits";
+
+    /**
+     * Count of source bytes returned by the requests.
+     */
+    public static final String SOURCE_BYTES = "sourceBytes";
+
+    /**
+     * Milliseconds the requests took on the server side.
+     */
+    public static final String TOOK_MILLIS = "tookMillis";
+
+    /**
+     * Microseconds spent converting the returned documents into elements.
+     */
+    public static final String CONVERSION_MICROS = "conversionMicros";
+
+    /**
+     * Count of queries answered from the query cache.
+     */
+    public static final String CACHE_HITS = "cacheHits";
+
+    /**
+     * Count of queries that missed the query cache.
+     */
+    public static final String CACHE_MISSES = "cacheMisses";
+
+    /**
+     * Annotation holding the JSON of the first query the step sent.
+     */
+    public static final String QUERY = "query";
+
+    /**
+     * Annotation holding the page size of the first search the step sent.
+     */
+    public static final String PAGE_SIZE = "pageSize";
+
+    /**
+     * The metrics of the step currently calling the query handler on this thread.
+     */
+    private static final ThreadLocal<MutableMetrics> current = new ThreadLocal<>();
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+
+    /**
+     * Gets the metrics of the step currently calling the query handler.
+     *
+     * @return the current metrics, null when the traversal isn't profiled.
+     */
+    public static MutableMetrics current() {
+        return current.get();
+    }
+
+    /**
+     * Sets the current metrics.
+     *
+     * @param metrics the metrics of the calling step, may be null.
+     * @return the previous metrics, to be restored by exit.
+     */
+    public static MutableMetrics enter(MutableMetrics metrics) {
+        MutableMetrics previous = current.get();
+        current.set(metrics);
+        return previous;
+    }
+
+    /**
+     * Restores the metrics that were current before enter.
+     *
+     * @param previous the previous metrics.
+     */
+    public static void exit(MutableMetrics previous) {
+        if (previous == null) current.remove();
+        else current.set(previous);
+    }
+
+    /**
+     * Reports a search or scroll response.
+     *
+     * @param metrics the metrics, may be null.
+     * @param request the request count key.
+     * @param response the response.
+     */
+    public static void search(MutableMetrics metrics, String request, SearchResponse response) {
+        if (metrics == null) return;
+        metrics.incrementCount(request, 1);
+        metrics.incrementCount(TOOK_MILLIS, response.getTookInMillis());
+        SearchHit[] hits = response.getHits().getHits();
+        metrics.incrementCount(HITS, hits.length);
+        long sourceBytes = 0;
+        for (SearchHit hit : hits)
+            if (hit.sourceRef() != null) sourceBytes += hit.sourceRef().length();
+        metrics.incrementCount(SOURCE_BYTES, sourceBytes);
+    }
+
+    /**
+     * Reports a multi get response.
+     *
+     * @param metrics the metrics, may be null.
+     * @param response the response.
+     */
+    public static void multiGet(MutableMetrics metrics, MultiGetResponse response) {
+        if (metrics == null) return;
+        metrics.incrementCount(MULTI_GETS, 1);
+        long hits = 0;
+        long sourceBytes = 0;
+        for (MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed() || !item.getResponse().isExists()) continue;
+            hits++;
+            if (!item.getResponse().isSourceEmpty()) sourceBytes += item.getResponse().getSourceAsBytesRef().length();
+        }
+        metrics.incrementCount(HITS, hits);
+        metrics.incrementCount(SOURCE_BYTES, sourceBytes);
+    }
+
+    /**
+     * Reports a query cache lookup.
+     *
+     * @param metrics the metrics, may be null.
+     * @param hit whether the query was answered from the cache.
+     */
+    public static void cache(MutableMetrics metrics, boolean hit) {
+        if (metrics == null) return;
+        metrics.incrementCount(hit ? CACHE_HITS : CACHE_MISSES, 1);
+    }
+
+    /**
+     * Reports the time spent converting documents.
+     *
+     * @param metrics the metrics, may be null.
+     * @param nanos the conversion time in nanoseconds.
+     */
+    public static void conversion(MutableMetrics metrics, long nanos) {
+        if (metrics == null) return;
+        metrics.incrementCount(CONVERSION_MICROS, nanos / 1000);
+    }
+
+    /**
+     * Converts documents into elements within the metrics scope, and reports the time it took.
+     * Elements registered meanwhile for a lazy fetch report it to the same metrics.
+     *
+     * @param metrics the metrics, may be null.
+     * @param conversion the conversion.
+     * @param <T> the type of the conversion's result.
+     * @return the conversion's result.
+     */
+    public static <T> T convert(MutableMetrics metrics, Supplier<T> conversion) {
+        MutableMetrics previous = enter(metrics);
+        long start = System.nanoTime();
+        try {
+            return conversion.get();
+        }
+        finally {
+            conversion(metrics, System.nanoTime() - start);
+            exit(previous);
+        }
+    }
+
+    /**
+     * Annotates the metrics with the query JSON, once per step.
+     *
+     * @param metrics the metrics, may be null.
+     * @param query the query.
+     */
+    public static void query(MutableMetrics metrics, QueryBuilder query) {
+        if (metrics == null || metrics.getAnnotations().containsKey(QUERY)) return;
+        metrics.setAnnotation(QUERY, query.toString());
+    }
+
+    /**
+     * Annotates the metrics with the page size a search asked for, once per step.
+     *
+     * @param metrics the metrics, may be null.
+     * @param pageSize the page size.
+     */
+    public static void pageSize(MutableMetrics metrics, int pageSize) {
+        if (metrics == null || metrics.getAnnotations().containsKey(PAGE_SIZE)) return;
+        metrics.setAnnotation(PAGE_SIZE, pageSize);
+    }
+}
@@ -1,18 +1,42 @@
 package org.elasticgremlin.queryhandler.elasticsearch.helpers;
 
+import org.apache.commons.configuration.Configuration;
 import org.apache.tinkerpop.gremlin.structure.Element;
 import org.elasticgremlin.structure.BaseElement;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
 
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * The elastic mutations is where the actual elasticsearch request is build and send off.
+ * In bulk mode the mutations fill a bulk request that's sent off as soon as it holds the maximum number of actions
+ * or bytes, or its first action is older than the flush interval. A bounded number of bulks are in flight at once:
+ * the next bulk fills while they're in flight, and a mutation that fills it while none can be sent waits for one
+ * to complete. The items elasticsearch rejects because its bulk queue is full are retried with exponential backoff
+ * and jitter, the bulk staying in flight meanwhile, and the items that still fail go to the dead letter handler.
+ * A bulk request that fails as a whole, rejected more times than the retries or unable to reach the cluster,
+ * fails every one of its items. Without a dead letter handler the commit throws when any item failed.
  */
 public class ElasticMutations {
 
@@ -34,10 +58,105 @@ public class ElasticMutations {
      */
     private BulkRequestBuilder bulkRequest;
 
+    /**
+     * The number of actions that sends the bulk request off, 0 for no limit.
+     */
+    private final int bulkActions;
+
+    /**
+     * The estimated size in bytes that sends the bulk request off, 0 for no limit.
+     */
+    private final long bulkBytes;
+
+    /**
+     * The time in milliseconds the first action of a bulk request waits at most before it's sent off, 0 for no limit.
+     */
+    private final long flushIntervalMillis;
+
+    /**
+     * The maximum number of bulk requests in flight.
+     */
+    private final int concurrentBulks;
+
+    /**
+     * The number of bulk requests in flight.
+     */
+    private int bulksInFlight = 0;
+
+    /**
+     * The full bulk requests waiting for a bulk in flight to complete, in the order they were filled.
+     */
+    private final Deque<Bulk> queuedBulks = new ArrayDeque<>();
+
+    /**
+     * The responses of the bulk requests sent since the last commit.
+     */
+    private List<CompletableFuture<List<BulkItemResponse>>> uncommittedBulks = new ArrayList<>();
+
+    /**
+     * The number of times a rejected item is retried.
+     */
+    private final int maxRetries;
+
+    /**
+     * The delay in milliseconds before the first retry, doubled by every retry.
+     */
+    private final long retryDelayMillis;
+
+    /**
+     * Sends off the bulk requests whose first action is older than the flush interval, and retries rejected items.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Gets the actions that failed for good along with their failed item responses, null to fail the commit instead.
+     */
+    private volatile BiConsumer<ActionRequest<?>, BulkItemResponse> deadLetterHandler;
+
+    /**
+     * The number of item retries.
+     */
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /**
+     * The number of items rejected by elasticsearch.
+     */
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    /**
+     * The number of items that failed for good.
+     */
+    private final AtomicLong deadLetterCount = new AtomicLong();
+
+    /**
+     * The number of actions sent off or queued that didn't complete yet.
+     */
+    private final AtomicLong backlog = new AtomicLong();
+
+    /**
+     * The time the first action of the pending bulk request was added, in milliseconds.
+     */
+    private long bulkStarted;
+
     /**
      * The revision.
      */
-    private int revision = 0;
+    private volatile int revision = 0;
+
+    /**
+     * Counts the times writes became visible to searches: a write sent without a bulk, or a bulk that completed.
+     */
+    private final AtomicInteger visibleRevision = new AtomicInteger();
+
+    /**
+     * The revision of the last write that's visible to the reads of every index.
+     */
+    private final Map<String, Integer> indexRevisions = new ConcurrentHashMap<>();
+
+    /**
+     * The indices written to by the pending bulk request.
+     */
+    private final Set<String> bulkIndices = new HashSet<>();
 
 
     ////////////////////////////////////////////////////////////////////////////
@@ -51,9 +170,65 @@ public class ElasticMutations {
      * @param timing the timing
      */
     public ElasticMutations(Boolean bulk, Client client, TimingAccessor timing) {
+        this(bulk, 1000, new ByteSizeValue(5, ByteSizeUnit.MB).bytes(), 0, 1, 8, 50, client, timing);
+    }
+
+    /**
+     * Constructs elastic mutation.
+     *
+     * @param bulk the bulk request flag
+     * @param bulkActions the number of actions that sends a bulk request off, 0 for no limit.
+     * @param bulkBytes the estimated size in bytes that sends a bulk request off, 0 for no limit.
+     * @param flushIntervalMillis the time the first action of a bulk request waits at most, 0 for no limit.
+     * @param concurrentBulks the maximum number of bulk requests in flight.
+     * @param maxRetries the number of times a rejected item is retried.
+     * @param retryDelayMillis the delay before the first retry, doubled by every retry.
+     * @param client the client
+     * @param timing the timing
+     */
+    public ElasticMutations(boolean bulk, int bulkActions, long bulkBytes, long flushIntervalMillis, int concurrentBulks,
+                            int maxRetries, long retryDelayMillis, Client client, TimingAccessor timing) {
         if(bulk) bulkRequest = client.prepareBulk();
+        this.bulkActions = bulkActions;
+        this.bulkBytes = bulkBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.concurrentBulks = Math.max(1, concurrentBulks);
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = Math.max(1, retryDelayMillis);
         this.timing = timing;
         this.client = client;
+
+        if (bulk) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "elastic-gremlin-bulk");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (flushIntervalMillis > 0)
+                scheduler.scheduleWithFixedDelay(this::flushIfStale, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        else scheduler = null;
+    }
+
+    /**
+     * Constructs elastic mutation from the graph configuration.
+     *
+     * @param configuration the configuration.
+     * @param client the client
+     * @param timing the timing
+     */
+    public ElasticMutations(Configuration configuration, Client client, TimingAccessor timing) {
+        this(configuration.getBoolean("elasticsearch.bulk", false),
+                configuration.getInt("elasticsearch.bulk.actions", 1000),
+                ByteSizeValue.parseBytesSizeValue(configuration.getString("elasticsearch.bulk.size", "5mb"),
+                        "elasticsearch.bulk.size").bytes(),
+                TimeValue.parseTimeValue(configuration.getString("elasticsearch.bulk.flushInterval", "0ms"), null,
+                        "elasticsearch.bulk.flushInterval").millis(),
+                configuration.getInt("elasticsearch.bulk.concurrentRequests", 1),
+                configuration.getInt("elasticsearch.bulk.retries", 8),
+                TimeValue.parseTimeValue(configuration.getString("elasticsearch.bulk.retryDelay", "50ms"), null,
+                        "elasticsearch.bulk.retryDelay").millis(),
+                client, timing);
     }
 
 
@@ -71,9 +246,11 @@ public class ElasticMutations {
     public void addElement(Element element, String index, String routing,  boolean create) {
         IndexRequestBuilder indexRequest = client.prepareIndex(index, element.label(), element.id().toString())
                 .setSource(propertiesMap(element)).setRouting(routing).setCreate(create);
-        if(bulkRequest != null) bulkRequest.add(indexRequest);
-        else indexRequest.execute().actionGet();
-        revision++;
+        if(bulkRequest != null) addBulk(index, () -> bulkRequest.add(indexRequest));
+        else {
+            indexRequest.execute().actionGet();
+            written(index);
+        }
     }
 
     /**
@@ -106,9 +283,11 @@ public class ElasticMutations {
                 .doc(propertiesMap(element)).routing(routing);
         if(upsert)
             updateRequest.detectNoop(true).docAsUpsert(true);
-        if(bulkRequest != null) bulkRequest.add(updateRequest);
-        else client.update(updateRequest).actionGet();
-        revision++;
+        if(bulkRequest != null) addBulk(index, () -> bulkRequest.add(updateRequest));
+        else {
+            client.update(updateRequest).actionGet();
+            written(index);
+        }
     }
 
     /**
@@ -120,20 +299,309 @@ public class ElasticMutations {
      */
     public void deleteElement(Element element, String index, String routing) {
         DeleteRequestBuilder deleteRequestBuilder = client.prepareDelete(index, element.label(), element.id().toString()).setRouting(routing);
-        if(bulkRequest != null) bulkRequest.add(deleteRequestBuilder);
-        else deleteRequestBuilder.execute().actionGet();
+        if(bulkRequest != null) addBulk(index, () -> bulkRequest.add(deleteRequestBuilder));
+        else {
+            deleteRequestBuilder.execute().actionGet();
+            written(index);
+        }
+    }
+
+    /**
+     * Adds an action to the pending bulk request, and sends the request off once it's full.
+     *
+     * @param index the index the action writes to.
+     * @param add adds the action to the bulk request.
+     */
+    private synchronized void addBulk(String index, Runnable add) {
+        if (bulkRequest.numberOfActions() == 0) bulkStarted = System.currentTimeMillis();
+        add.run();
+        written(index);
+        if ((bulkActions > 0 && bulkRequest.numberOfActions() >= bulkActions) ||
+                (bulkBytes > 0 && bulkRequest.request().estimatedSizeInBytes() >= bulkBytes))
+            flush();
+    }
+
+    /**
+     * Counts a write to an index.
+     *
+     * @param index the index written to.
+     */
+    private synchronized void written(String index) {
         revision++;
+        // a bulk write only becomes visible when its bulk request completes
+        if (bulkRequest != null) bulkIndices.add(index);
+        else {
+            indexRevisions.put(index, revision);
+            visibleRevision.incrementAndGet();
+        }
     }
 
     /**
-     * Commits the bulk request changes.
+     * Sends the pending bulk request off, waiting for a bulk in flight to complete when there are too many of them.
+     * The full bulk stays queued if the wait is interrupted, and is sent once a bulk in flight completes.
+     */
+    private synchronized void flush() {
+        queue();
+        // backpressure: the next bulk isn't filled until the full one is sent
+        while (!queuedBulks.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Queues the pending bulk request, and sends it if fewer bulks than the maximum are in flight.
+     */
+    private synchronized void queue() {
+        if (bulkRequest.numberOfActions() == 0) return;
+        Bulk bulk = new Bulk(bulkRequest, new HashSet<>(bulkIndices), revision);
+        bulkRequest = client.prepareBulk();
+        bulkIndices.clear();
+        backlog.addAndGet(bulk.actions.size());
+        queuedBulks.add(bulk);
+        uncommittedBulks.add(bulk.response);
+        send();
+    }
+
+    /**
+     * Sends the queued bulk requests, while fewer bulks than the maximum are in flight.
+     */
+    private synchronized void send() {
+        while (bulksInFlight < concurrentBulks && !queuedBulks.isEmpty()) {
+            bulksInFlight++;
+            execute(queuedBulks.poll());
+        }
+    }
+
+    /**
+     * Executes the current attempt of a bulk request.
+     *
+     * @param bulk the bulk.
+     */
+    private void execute(Bulk bulk) {
+        bulk.request.execute(new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                handleResponse(bulk, response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                handleFailure(bulk, e);
+            }
+        });
+    }
+
+    /**
+     * Keeps the item responses of a bulk attempt, and retries its rejected items or completes the bulk.
+     *
+     * @param bulk the bulk.
+     * @param response the response of the bulk's current attempt.
+     */
+    private void handleResponse(Bulk bulk, BulkResponse response) {
+        List<Integer> rejected = new ArrayList<>();
+        for (BulkItemResponse item : response.getItems()) {
+            int position = bulk.positions.get(item.getItemId());
+            bulk.items[position] = item;
+            if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) rejected.add(position);
+        }
+        rejectionCount.addAndGet(rejected.size());
+        if (!rejected.isEmpty() && bulk.attempt < maxRetries) retry(bulk, rejected);
+        else completed(bulk, null);
+    }
+
+    /**
+     * Retries a bulk attempt that was rejected as a whole, or fails the bulk.
+     *
+     * @param bulk the bulk.
+     * @param e the failure of the bulk's current attempt.
+     */
+    private void handleFailure(Bulk bulk, Throwable e) {
+        if (ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException) {
+            rejectionCount.addAndGet(bulk.positions.size());
+            if (bulk.attempt < maxRetries) {
+                retry(bulk, bulk.positions);
+                return;
+            }
+        }
+        completed(bulk, e);
+    }
+
+    /**
+     * Sends the given items of a bulk again once the backoff delay of its attempt has passed.
+     * The delay doubles with every attempt, and a random jitter of up to half of it keeps the retries of
+     * concurrent bulks apart.
+     *
+     * @param bulk the bulk.
+     * @param positions the positions of the items to retry.
+     */
+    private void retry(Bulk bulk, List<Integer> positions) {
+        long delay = retryDelayMillis << Math.min(bulk.attempt, 30);
+        delay -= ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        bulk.attempt++;
+        bulk.positions = positions;
+        bulk.request = client.prepareBulk();
+        positions.forEach(position -> bulk.request.request().add(bulk.actions.get(position)));
+        retryCount.addAndGet(positions.size());
+        scheduler.schedule(() -> execute(bulk), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands the failed items of a completed bulk to the dead letter handler, marks its writes as visible,
+     * sends the next queued bulk and completes the bulk's response.
+     *
+     * @param bulk the completed bulk.
+     * @param failure the failure of the bulk request as a whole, that fails the items of its current attempt,
+     *                null if it got item responses.
+     */
+    private void completed(Bulk bulk, Throwable failure) {
+        try {
+            if (failure != null)
+                bulk.positions.forEach(position -> bulk.items[position] = failed(position, bulk.actions.get(position), failure));
+            BiConsumer<ActionRequest<?>, BulkItemResponse> handler = deadLetterHandler;
+            for (int position = 0; position < bulk.items.length; position++) {
+                if (!bulk.items[position].isFailed()) continue;
+                deadLetterCount.incrementAndGet();
+                if (handler != null) handler.accept(bulk.actions.get(position), bulk.items[position]);
+            }
+        } finally {
+            backlog.addAndGet(-bulk.actions.size());
+            synchronized (this) {
+                bulk.indices.forEach(index -> indexRevisions.merge(index, bulk.revision, Math::max));
+                visibleRevision.incrementAndGet();
+                bulksInFlight--;
+                send();
+                notifyAll();
+            }
+            bulk.response.complete(Arrays.asList(bulk.items));
+        }
+    }
+
+    /**
+     * Builds the failed item response of an action whose bulk request failed as a whole.
+     *
+     * @param position the position of the action in its bulk.
+     * @param action the action.
+     * @param failure the failure of the bulk request.
+     * @return the failed item response.
+     */
+    private static BulkItemResponse failed(int position, ActionRequest<?> action, Throwable failure) {
+        String opType = action instanceof IndexRequest ? ((IndexRequest) action).opType().lowercase() :
+                action instanceof DeleteRequest ? "delete" : "update";
+        DocumentRequest<?> request = (DocumentRequest<?>) action;
+        return new BulkItemResponse(position, opType,
+                new BulkItemResponse.Failure(request.index(), request.type(), request.id(), failure));
+    }
+
+    /**
+     * Sends the pending bulk request off when its first action is older than the flush interval.
+     */
+    private synchronized void flushIfStale() {
+        if (bulkRequest.numberOfActions() > 0 && System.currentTimeMillis() - bulkStarted >= flushIntervalMillis) queue();
+    }
+
+    /**
+     * Commits the bulk request changes: sends the pending bulk request off and waits for all the bulks
+     * sent since the last commit.
+     *
+     * @throws IllegalStateException if items failed for good and there's no dead letter handler to get them.
      */
     public void commit() {
-        if (bulkRequest == null || bulkRequest.numberOfActions() == 0) return;
+        if (bulkRequest == null) return;
         timing.start("bulk");
-        bulkRequest.execute().actionGet();
-        timing.stop("bulk");
-        bulkRequest = client.prepareBulk();
+        try {
+            List<BulkItemResponse> items = commitAsync().join();
+            if (deadLetterHandler != null) return;
+            List<BulkItemResponse> failed = new ArrayList<>();
+            items.forEach(item -> { if (item.isFailed()) failed.add(item); });
+            if (!failed.isEmpty())
+                throw new IllegalStateException(failed.size() + " of " + items.size() + " bulk items failed, first: " +
+                        failed.get(0).getFailureMessage(), failed.get(0).getFailure().getCause());
+        } catch (CompletionException e) {
+            throw ExceptionsHelper.convertToRuntime(e.getCause());
+        } finally {
+            timing.stop("bulk");
+        }
+    }
+
+    /**
+     * Commits the bulk request changes without waiting for them: sends the pending bulk request off, or queues it
+     * while the maximum number of bulks are in flight. The mutations that follow fill the next bulk meanwhile.
+     *
+     * @return the final responses of the items of all the bulks sent since the last commit, in the order they were
+     * added. The items of a bulk request that failed as a whole are failed too.
+     */
+    public synchronized CompletableFuture<List<BulkItemResponse>> commitAsync() {
+        if (bulkRequest == null) return CompletableFuture.completedFuture(Collections.emptyList());
+        queue();
+        List<CompletableFuture<List<BulkItemResponse>>> responses = uncommittedBulks;
+        uncommittedBulks = new ArrayList<>();
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[responses.size()])).thenApply(done -> {
+            List<BulkItemResponse> items = new ArrayList<>();
+            responses.forEach(response -> items.addAll(response.join()));
+            return items;
+        });
+    }
+
+    /**
+     * Commits the bulk request changes and stops the flush interval.
+     */
+    public void close() {
+        try {
+            commit();
+        } finally {
+            if (scheduler != null) scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Sets the handler of the actions that failed for good: rejected more times than the retries,
+     * or failed for any other reason, like a version conflict.
+     *
+     * @param deadLetterHandler gets the failed action along with its item response, null to fail the commit instead.
+     */
+    public void setDeadLetterHandler(BiConsumer<ActionRequest<?>, BulkItemResponse> deadLetterHandler) {
+        this.deadLetterHandler = deadLetterHandler;
+    }
+
+    /**
+     * Gets the number of item retries.
+     *
+     * @return the number of retries.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Gets the number of items elasticsearch rejected, including the rejections that were retried.
+     *
+     * @return the number of rejections.
+     */
+    public long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    /**
+     * Gets the number of items that failed for good.
+     *
+     * @return the number of dead letters.
+     */
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    /**
+     * Gets the number of actions sent off or queued that didn't complete yet, retries included.
+     *
+     * @return the backlog.
+     */
+    public long getBacklog() {
+        return backlog.get();
     }
 
     /**
@@ -144,4 +612,49 @@ public class ElasticMutations {
     public int getRevision() {
         return revision;
     }
+
+    /**
+     * Gets the visible revision, which changes whenever writes become visible to searches.
+     * Unlike the revision, it doesn't change when a write is only added to the pending bulk request.
+     *
+     * @return the visible revision.
+     */
+    public int getVisibleRevision() {
+        return visibleRevision.get();
+    }
+
+    /**
+     * Gets the revision of the last write to an index that was sent to elasticsearch.
+     *
+     * @param index the index.
+     * @return the revision, 0 if the index wasn't written to.
+     */
+    public int getRevision(String index) {
+        return indexRevisions.getOrDefault(index, 0);
+    }
+
+    /**
+     * A bulk request, with the indices it writes to and the revision of its last write.
+     * A retry sends some of its actions again, in a new request whose items map to their original positions.
+     */
+    private static class Bulk {
+        private BulkRequestBuilder request;
+        private final Set<String> indices;
+        private final int revision;
+        private final List<ActionRequest<?>> actions = new ArrayList<>();
+        private final BulkItemResponse[] items;
+        private List<Integer> positions;
+        private int attempt = 0;
+        private final CompletableFuture<List<BulkItemResponse>> response = new CompletableFuture<>();
+
+        private Bulk(BulkRequestBuilder request, Set<String> indices, int revision) {
+            this.request = request;
+            this.indices = indices;
+            this.revision = revision;
+            for (ActionRequest<?> action : request.request().requests()) actions.add(action);
+            this.items = new BulkItemResponse[actions.size()];
+            this.positions = new ArrayList<>();
+            for (int position = 0; position < actions.size(); position++) positions.add(position);
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package org.elasticgremlin.queryhandler.elasticsearch.helpers;
+
+import org.apache.commons.configuration.Configuration;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.*;
+
+/**
+ * Refreshes the indices a search is about to read, only if the graph wrote to them since their last refresh.
+ * Every refresh opens a new segment and drops the index caches, so reads that follow no write don't refresh,
+ * and concurrent reads that follow the same writes share a single refresh.
+ * A refresh interval coalesces the refreshes further: within the interval since the last refresh,
+ * reads don't refresh again and may miss the writes made meanwhile.
+ */
+public class IndexRefresher {
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Fields
+    /**
+     * The client.
+     */
+    private final Client client;
+
+    /**
+     * The mutations whose revisions tell which indices were written to.
+     */
+    private final ElasticMutations elasticMutations;
+
+    /**
+     * Whether reads refresh the indices at all.
+     */
+    private final boolean enabled;
+
+    /**
+     * The minimum number of milliseconds between two refreshes.
+     */
+    private final long intervalMillis;
+
+    /**
+     * The revision of every index when it was last refreshed.
+     */
+    private final Map<String, Integer> refreshedRevisions = new HashMap<>();
+
+    /**
+     * The time of the last refresh, in milliseconds.
+     */
+    private long lastRefresh = 0;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+
+    /**
+     * Constructs IndexRefresher.
+     *
+     * @param client the client.
+     * @param elasticMutations the mutations of the graph.
+     * @param enabled whether reads refresh the indices written to.
+     * @param intervalMillis the minimum number of milliseconds between two refreshes, 0 for read after write.
+     */
+    public IndexRefresher(Client client, ElasticMutations elasticMutations, boolean enabled, long intervalMillis) {
+        this.client = client;
+        this.elasticMutations = elasticMutations;
+        this.enabled = enabled;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Constructs IndexRefresher from the graph configuration.
+     *
+     * @param configuration the configuration.
+     * @param client the client.
+     * @param elasticMutations the mutations of the graph.
+     */
+    public IndexRefresher(Configuration configuration, Client client, ElasticMutations elasticMutations) {
+        this(client, elasticMutations, configuration.getBoolean("elasticsearch.refresh", false),
+                TimeValue.parseTimeValue(configuration.getString("elasticsearch.refresh.interval", "0ms"), null,
+                        "elasticsearch.refresh.interval").millis());
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+
+    /**
+     * Refreshes the indices the graph wrote to since they were last refreshed.
+     *
+     * @param indices the indices about to be read.
+     */
+    public synchronized void refresh(String... indices) {
+        if (!enabled) return;
+        Map<String, Integer> revisions = new HashMap<>();
+        for (String index : indices) {
+            int revision = elasticMutations.getRevision(index);
+            if (revision > refreshedRevisions.getOrDefault(index, 0)) revisions.put(index, revision);
+        }
+        if (revisions.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        if (now - lastRefresh < intervalMillis) return;
+
+        // writes made while refreshing have a later revision, so they're refreshed by the next read
+        client.admin().indices().prepareRefresh(revisions.keySet().toArray(new String[revisions.size()])).execute().actionGet();
+        refreshedRevisions.putAll(revisions);
+        lastRefresh = now;
+    }
+}
@@ -1,6 +1,7 @@
 package org.elasticgremlin.queryhandler.elasticsearch.helpers;
 
-import org.elasticgremlin.structure.BaseVertex;
+import org.apache.tinkerpop.gremlin.process.traversal.util.MutableMetrics;
+import org.elasticgremlin.structure.*;
 import org.elasticsearch.action.get.*;
 import org.elasticsearch.client.Client;
 
@@ -13,8 +14,10 @@ public class LazyGetter {
     private TimingAccessor timing;
     private boolean executed = false;
     private MultiGetRequest multiGetRequest = new MultiGetRequest();
-    private HashMap<String, List<BaseVertex>> idToVertices = new HashMap();
+    private HashMap<String, List<BaseElement>> idToElements = new HashMap();
     private List<BaseVertex> vertices = new ArrayList<>();
+    private Set<LazyPage<?>> pages = Collections.newSetFromMap(new IdentityHashMap<>());
+    private MutableMetrics metrics;
 
     public LazyGetter(Client client, TimingAccessor timing) {
         this.client = client;
@@ -25,40 +28,53 @@ public class LazyGetter {
         return !executed && multiGetRequest.getItems().size() < MAX_LAZY_GET;
     }
 
-    public void register(BaseVertex v, String indexName) {
-        multiGetRequest.add(indexName, null, v.id().toString()); //TODO: add routing..?
+    public void register(BaseElement element, String indexName) {
+        // the multi get is reported to the profiled step that fetched the first of the elements
+        if (metrics == null) metrics = ElasticMetrics.current();
+        multiGetRequest.add(indexName, null, element.id().toString()); //TODO: add routing..?
 
-        List<BaseVertex> vertices = idToVertices.get(v.id().toString());
-        if (vertices == null) {
-            vertices = new ArrayList();
-            idToVertices.put(v.id().toString(), vertices);
+        List<BaseElement> elements = idToElements.get(element.id().toString());
+        if (elements == null) {
+            elements = new ArrayList();
+            idToElements.put(element.id().toString(), elements);
         }
-        vertices.add(v);
+        elements.add(element);
 
-        this.vertices.add(v);
-        v.setSiblings(this.vertices);
+        if (element instanceof BaseVertex) {
+            this.vertices.add((BaseVertex) element);
+            ((BaseVertex) element).setSiblings(this.vertices);
+        }
+    }
+
+    public void register(LazyPage<?> page) {
+        pages.add(page);
     }
 
     public void execute() {
         if (executed) return;
+        // the rest of the registered elements' pages is converted first, so it's fetched along with them
+        new ArrayList<>(pages).forEach(LazyPage::convertAll);
 
         timing.start("lazyMultiGet");
         MultiGetResponse multiGetItemResponses = client.multiGet(multiGetRequest).actionGet();
         timing.stop("lazyMultiGet");
+        ElasticMetrics.multiGet(metrics, multiGetItemResponses);
 
         multiGetItemResponses.forEach(response -> {
             if (response.isFailed() || !response.getResponse().isExists()) {
                 System.out.println(response.getFailure().getMessage());
                 return;
             }
-            List<BaseVertex> vertices = idToVertices.get(response.getId());
-            if (vertices == null) return;
-            vertices.forEach(vertex -> vertex.applyLazyFields(response));
+            List<BaseElement> elements = idToElements.get(response.getId());
+            if (elements == null) return;
+            elements.forEach(element -> element.applyLazyFields(response));
         });
 
         executed = true;
         multiGetRequest = null;
-        idToVertices = null;
+        idToElements = null;
+        pages = null;
         client = null;
+        metrics = null;
     }
 }
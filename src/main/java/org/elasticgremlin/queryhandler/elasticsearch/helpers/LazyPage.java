@@ -0,0 +1,78 @@
+package org.elasticgremlin.queryhandler.elasticsearch.helpers;
+
+import org.elasticsearch.search.SearchHit;
+
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * The elements of a page of hits, each converted the first time it's read.
+ * Iterating the page emits its elements as they're converted, and the page itself serves as the elements'
+ * sibling list: a sibling query (or a lazy multi get of the page) converts the rest of the page, so the whole
+ * page is still fetched together, and the elements emitted afterwards are the same instances.
+ * @param <E> the type of the elements.
+ */
+public class LazyPage<E> extends AbstractList<E> {
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Fields
+    /**
+     * The hits of the page, each one released once it's converted.
+     */
+    private final SearchHit[] hits;
+
+    /**
+     * The converted elements, null where a hit isn't converted yet.
+     */
+    private final List<E> elements;
+
+    /**
+     * Converts a hit into an element, given the page as the element's siblings.
+     */
+    private final BiFunction<SearchHit, LazyPage<E>, E> convertFunc;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+
+    /**
+     * Constructs LazyPage.
+     *
+     * @param hits the hits of the page.
+     * @param convertFunc converts a hit into an element, given the page as its siblings.
+     */
+    public LazyPage(Iterator<SearchHit> hits, BiFunction<SearchHit, LazyPage<E>, E> convertFunc) {
+        List<SearchHit> pageHits = new ArrayList<>();
+        hits.forEachRemaining(pageHits::add);
+        this.hits = pageHits.toArray(new SearchHit[pageHits.size()]);
+        this.elements = new ArrayList<>(Collections.<E>nCopies(this.hits.length, null));
+        this.convertFunc = convertFunc;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+    @Override
+    public E get(int index) {
+        E element = elements.get(index);
+        if (element == null) {
+            element = convertFunc.apply(hits[index], this);
+            elements.set(index, element);
+            hits[index] = null;
+        }
+        return element;
+    }
+
+    @Override
+    public int size() {
+        return hits.length;
+    }
+
+    /**
+     * Converts the hits that weren't converted yet.
+     */
+    public void convertAll() {
+        for (int i = 0; i < elements.size(); i++) get(i);
+    }
+}
@@ -0,0 +1,346 @@
+package org.elasticgremlin.queryhandler.elasticsearch.helpers;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.tinkerpop.gremlin.process.traversal.util.MutableMetrics;
+import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.internal.InternalSearchHit;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Caches the hits of the handlers' queries, keyed by the handler and the query's predicates.
+ * A query that's iterated to the end and returns no more than the maximum hits per entry is cached,
+ * and repeating it converts the cached hits again, into new elements, instead of searching.
+ * Entries are evicted least recently used first, expire after their time to live,
+ * and are dropped as soon as any write of the graph becomes visible to searches (the mutations' visible revision
+ * changes), which in bulk mode is when the bulk holding the write completes.
+ * It also memoizes the serialized filters of the graph's latest predicates.
+ */
+public class QueryCache {
+
+
+    /**
+     * The maximum number of memoized predicate filters.
+     */
+    private static final int MAX_FILTERS = 1000;
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Fields
+    /**
+     * The maximum number of cached queries, 0 disables the cache.
+     */
+    private final int maxEntries;
+
+    /**
+     * The maximum number of hits of a cached query.
+     */
+    private final int maxHits;
+
+    /**
+     * The number of milliseconds an entry is valid for.
+     */
+    private final long ttlMillis;
+
+    /**
+     * The mutations whose visible revision invalidates the entries.
+     */
+    private final ElasticMutations elasticMutations;
+
+    /**
+     * The entries, in access order.
+     */
+    private final LinkedHashMap<List<Object>, CachedHits> entries;
+
+    /**
+     * The serialized filters of the last predicates, least recently used first.
+     * They're kept regardless of the entries, as a filter doesn't depend on the graph's data.
+     */
+    private final Map<Predicates, QueryBuilder> filters = new LinkedHashMap<Predicates, QueryBuilder>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Predicates, QueryBuilder> eldest) {
+            return size() > MAX_FILTERS;
+        }
+    };
+
+    /**
+     * Number of queries answered from the cache.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Number of queries sent to elasticsearch while the cache is enabled.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+
+    /**
+     * Constructs QueryCache.
+     *
+     * @param maxEntries the maximum number of cached queries, 0 to disable the cache.
+     * @param maxHits the maximum number of hits of a cached query.
+     * @param ttlMillis the number of milliseconds an entry is valid for.
+     * @param elasticMutations the mutations of the graph.
+     */
+    public QueryCache(int maxEntries, int maxHits, long ttlMillis, ElasticMutations elasticMutations) {
+        this.maxEntries = maxEntries;
+        this.maxHits = maxHits;
+        this.ttlMillis = ttlMillis;
+        this.elasticMutations = elasticMutations;
+        this.entries = new LinkedHashMap<List<Object>, CachedHits>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedHits> eldest) {
+                return size() > QueryCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Constructs QueryCache from the graph configuration.
+     *
+     * @param configuration the configuration.
+     * @param elasticMutations the mutations of the graph.
+     */
+    public QueryCache(Configuration configuration, ElasticMutations elasticMutations) {
+        this(configuration.getInt("elasticsearch.queryCache.size", 0),
+                configuration.getInt("elasticsearch.queryCache.maxHits", 100),
+                TimeValue.parseTimeValue(configuration.getString("elasticsearch.queryCache.ttl", "1m"), null,
+                        "elasticsearch.queryCache.ttl").millis(),
+                elasticMutations);
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+
+    /**
+     * Gets the elements of a query, from the cache if it holds the query's hits.
+     *
+     * @param handler the handler of the query.
+     * @param predicates the predicates of the query.
+     * @param convertFunc converts a page of hits into elements.
+     * @param search sends the query, converting its pages with the given function.
+     * @param <E> the type of the elements.
+     * @return the elements.
+     */
+    public <E> Iterator<E> get(Object handler, Predicates predicates,
+                               Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc,
+                               Function<Function<Iterator<SearchHit>, Iterator<? extends E>>, Iterator<E>> search) {
+        if (maxEntries <= 0) return search.apply(convertFunc);
+
+        List<Object> key = Arrays.asList(handler, predicates);
+        int revision = elasticMutations.getVisibleRevision();
+        List<SearchHit> hits = get(key, revision);
+        MutableMetrics metrics = ElasticMetrics.current();
+        ElasticMetrics.cache(metrics, hits != null);
+        if (hits != null) {
+            hitCount.incrementAndGet();
+            return convert(hits, convertFunc, metrics);
+        }
+        missCount.incrementAndGet();
+
+        Filler<E> filler = new Filler<>(key, revision, convertFunc);
+        filler.elements = search.apply(filler::convert);
+        return filler;
+    }
+
+    /**
+     * Gets the memoized filter of predicates, creating it if it isn't memoized.
+     *
+     * @param predicates the filtering predicates.
+     * @param createFunc creates the filter of the predicates.
+     * @return the filter.
+     */
+    public QueryBuilder getFilter(Predicates predicates, Function<Predicates, QueryBuilder> createFunc) {
+        QueryBuilder filter;
+        synchronized (filters) {
+            filter = filters.get(predicates);
+        }
+        if (filter == null) {
+            filter = createFunc.apply(predicates);
+            synchronized (filters) {
+                filters.put(predicates, filter);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Converts the cached hits of a query into new elements, within the metrics scope of the step that asked for them.
+     * Every hit is converted from a copy, so the elements don't share source maps with the cached hits or each other.
+     *
+     * @param hits the cached hits.
+     * @param convertFunc converts the hits into elements.
+     * @param metrics the metrics of the step, null when not profiled.
+     * @param <E> the type of the elements.
+     * @return the elements.
+     */
+    private static <E> Iterator<E> convert(List<SearchHit> hits, Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc,
+                                           MutableMetrics metrics) {
+        List<SearchHit> copies = new ArrayList<>(hits.size());
+        for (SearchHit hit : hits) copies.add(copy(hit));
+        Iterator<? extends E> elements = ElasticMetrics.convert(metrics, () -> convertFunc.apply(copies.iterator()));
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return elements.hasNext();
+            }
+
+            @Override
+            public E next() {
+                // the hits are converted as they're consumed, like the pages of a search
+                return ElasticMetrics.convert(metrics, elements::next);
+            }
+        };
+    }
+
+    /**
+     * Copies a hit, its source is parsed again from the same bytes.
+     *
+     * @param hit the hit.
+     * @return the copy.
+     */
+    private static SearchHit copy(SearchHit hit) {
+        InternalSearchHit copy = new InternalSearchHit(((InternalSearchHit) hit).docId(), hit.getId(),
+                new StringText(hit.getType()), hit.getFields());
+        copy.shardTarget(hit.getShard());
+        copy.sourceRef(hit.getSourceRef());
+        copy.version(hit.getVersion());
+        copy.score(hit.getScore());
+        return copy;
+    }
+
+    /**
+     * Gets the number of queries answered from the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of queries sent to elasticsearch while the cache is enabled.
+     *
+     * @return the number of cache misses.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Drops all the entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the hits of a valid entry.
+     *
+     * @param key the key.
+     * @param revision the current visible revision.
+     * @return the hits, null if there's no valid entry.
+     */
+    private synchronized List<SearchHit> get(List<Object> key, int revision) {
+        CachedHits entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.revision != revision || System.currentTimeMillis() - entry.created > ttlMillis) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.hits;
+    }
+
+    /**
+     * Caches an entry, unless writes became visible since its query was sent.
+     *
+     * @param key the key.
+     * @param entry the entry.
+     */
+    private synchronized void put(List<Object> key, CachedHits entry) {
+        if (entry.revision == elasticMutations.getVisibleRevision()) entries.put(key, entry);
+    }
+
+    /**
+     * Iterates the elements of a query that missed the cache, keeping its pages of hits as they're converted,
+     * and caches them once the query is iterated to the end.
+     * @param <E> the type of the elements.
+     */
+    private class Filler<E> implements Iterator<E>, AutoCloseable {
+        private final List<Object> key;
+        private final int revision;
+        private final Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc;
+        private List<SearchHit> hits = new ArrayList<>();
+        private Iterator<E> elements;
+
+        private Filler(List<Object> key, int revision, Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc) {
+            this.key = key;
+            this.revision = revision;
+            this.convertFunc = convertFunc;
+        }
+
+        private Iterator<? extends E> convert(Iterator<SearchHit> pageHits) {
+            if (hits == null) return convertFunc.apply(pageHits);
+            List<SearchHit> page = new ArrayList<>();
+            pageHits.forEachRemaining(page::add);
+            // too many hits to cache, the rest of the pages are only converted
+            if (hits.size() + page.size() <= maxHits) hits.addAll(page);
+            else hits = null;
+            return convertFunc.apply(page.iterator());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (elements.hasNext()) return true;
+            if (hits != null) put(key, new CachedHits(hits, revision));
+            hits = null;
+            return false;
+        }
+
+        @Override
+        public E next() {
+            return elements.next();
+        }
+
+        @Override
+        public void close() {
+            // a query that wasn't iterated to the end isn't cached
+            hits = null;
+            if (elements instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) elements).close();
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The hits of a query.
+     */
+    private static class CachedHits {
+        private final List<SearchHit> hits;
+        private final int revision;
+        private final long created = System.currentTimeMillis();
+
+        private CachedHits(List<SearchHit> hits, int revision) {
+            this.hits = hits;
+            this.revision = revision;
+        }
+    }
+}
@@ -1,20 +1,30 @@
 package org.elasticgremlin.queryhandler.elasticsearch.helpers;
 
-import org.apache.tinkerpop.gremlin.structure.*;
-import org.elasticsearch.action.search.SearchResponse;
+import org.apache.tinkerpop.gremlin.process.traversal.Order;
+import org.apache.tinkerpop.gremlin.process.traversal.util.MutableMetrics;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.*;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.search.SearchHit;
+import org.javatuples.Pair;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Function;
 
 /**
  * The Query iterator.
- * @param <E>
+ * The scroll context it opens is cleared once the hits or the allowed range are exhausted, or when it's closed.
+ * @param <E> the type of the converted hits.
  */
-public class QueryIterator<E extends Element> implements Iterator<E> {
+public class QueryIterator<E> implements Iterator<E>, AutoCloseable {
+
+    /**
+     * The deepest from + size a plain (non scrolled) search may reach.
+     */
+    private static final long MAX_RESULT_WINDOW = 10000;
 
     ////////////////////////////////////////////////////////////////////////////
     // Fields
@@ -23,11 +33,41 @@ public class QueryIterator<E extends Element> implements Iterator<E> {
      */
     private SearchResponse scrollResponse;
 
+    /**
+     * The id of the open scroll context, null when none was opened or once it's cleared.
+     */
+    private String scrollId;
+
+    /**
+     * The open scroll context, cleared when the iterator is closed or garbage collected.
+     */
+    private ScrollContexts.Context context;
+
     /**
      * Allowed remaining counter.
      */
     private long allowedRemaining;
 
+    /**
+     * Number of hits still to be skipped before the first returned element.
+     */
+    private long toSkip;
+
+    /**
+     * Total number of hits of the scroll, and the number of them already scrolled.
+     */
+    private long totalHits, scrolledHits;
+
+    /**
+     * The search to scroll when a lookup expected to fit in a single page turns out to have more hits.
+     */
+    private SearchRequestBuilder overflowRequest;
+
+    /**
+     * The uids of the hits the single page already returned, skipped when the overflow is scrolled.
+     */
+    private Set<String> returnedUids;
+
     /**
      * Conversion function.
      */
@@ -43,11 +83,36 @@ public class QueryIterator<E extends Element> implements Iterator<E> {
      */
     private Client client;
 
+    /**
+     * The scroll settings.
+     */
+    private final ScrollSettings settings;
+
+    /**
+     * The prefetched scroll pages, in order, with their sources already parsed.
+     */
+    private final Deque<CompletableFuture<SearchResponse>> prefetched = new ArrayDeque<>();
+
+    /**
+     * The last scroll request sent, the next one is chained to its response.
+     */
+    private CompletableFuture<SearchResponse> lastRequest;
+
+    /**
+     * Number of scroll pages that may still be prefetched before the range or the total hits is exhausted.
+     */
+    private long pagesToPrefetch;
+
     /**
      * Iterator of hits.
      */
     private Iterator<? extends E> hits;
 
+    /**
+     * The metrics of the profiled step that created the iterator, null when not profiled.
+     */
+    private final MutableMetrics metrics;
+
 
     ////////////////////////////////////////////////////////////////////////////
     // Constructors
@@ -56,55 +121,308 @@ public class QueryIterator<E extends Element> implements Iterator<E> {
      * Constructs QueryIterator.
      *
      * @param filter the filter.
-     * @param startFrom start from identifier.
-     * @param scrollSize scroll size.
+     * @param startFrom number of hits to skip.
+     * @param settings the scroll settings.
      * @param maxSize maximum size to scroll.
      * @param client the client.
      * @param convertFunc the conversion function.
-     * @param refresh the refresh flag.
+     * @param refresher refreshes the indices before reads that follow writes.
      * @param timing the timing.
      * @param indices the indices.
      */
-    public QueryIterator(QueryBuilder filter, int startFrom, int scrollSize, long maxSize, Client client,
+    public QueryIterator(QueryBuilder filter, long startFrom, ScrollSettings settings, long maxSize, Client client,
                          Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc,
-                         Boolean refresh, TimingAccessor timing, String... indices) {
+                         IndexRefresher refresher, TimingAccessor timing, String... indices) {
+        this(filter, Collections.emptyList(), null, startFrom, settings, maxSize, Long.MAX_VALUE, client, convertFunc, refresher, timing, indices);
+    }
+
+    /**
+     * Constructs a QueryIterator over hits sorted by the given orders, fetching only part of their source.
+     *
+     * @param filter the filter.
+     * @param orders the ordered (key, order) pairs to sort by, empty for index order.
+     * @param includes the source fields to fetch, null for the whole source.
+     * @param startFrom number of hits to skip.
+     * @param settings the scroll settings.
+     * @param maxSize maximum size to scroll.
+     * @param expectedHits the most hits the filter is expected to match (e.g. the number of ids it looks up),
+     *                     Long.MAX_VALUE when unknown.
+     * @param client the client.
+     * @param convertFunc the conversion function.
+     * @param refresher refreshes the indices before reads that follow writes.
+     * @param timing the timing.
+     * @param indices the indices.
+     */
+    public QueryIterator(QueryBuilder filter, List<Pair<String, Order>> orders, String[] includes, long startFrom,
+                         ScrollSettings settings, long maxSize, long expectedHits, Client client,
+                         Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc,
+                         IndexRefresher refresher, TimingAccessor timing, String... indices) {
         this.client = client;
+        this.settings = settings;
         this.allowedRemaining = maxSize;
         this.convertFunc = convertFunc;
         this.timing = timing;
+        this.metrics = ElasticMetrics.current();
+
+        if (maxSize <= 0) {
+            hits = Collections.emptyIterator();
+            return;
+        }
 
-        if (refresh) client.admin().indices().prepareRefresh(indices).execute().actionGet();
+        refresher.refresh(indices);
+        QueryBuilder query = QueryBuilders.boolQuery().must(QueryBuilders.matchAllQuery()).filter(filter);
+        ElasticMetrics.query(metrics, query);
+        SearchRequestBuilder searchRequest = client.prepareSearch(indices).setQuery(query);
+        ElasticHelper.addSorts(searchRequest, orders);
+        if (includes != null) searchRequest.setFetchSource(includes, null);
+
+        // a scroll keeps the page size it's opened with, adapted to the hits of the previous queries
+        int pageSize = settings.getPageSize();
+        ElasticMetrics.pageSize(metrics, pageSize);
         this.timing.start("scroll");
-        scrollResponse = client.prepareSearch(indices)
-                .setQuery(QueryBuilders.boolQuery().must(QueryBuilders.matchAllQuery()).filter(filter))
-                .setFrom(startFrom)
-                .setScroll(new TimeValue(60000))
-                .setSize(maxSize < scrollSize ? (int) maxSize : scrollSize)
-                .execute().actionGet();
+        if ((maxSize <= pageSize || !orders.isEmpty()) && startFrom + maxSize <= MAX_RESULT_WINDOW) {
+            // the whole range fits in a single page (a sorted top-k is fetched in one go), no need for a scroll context
+            scrollResponse = searchRequest.setFrom((int) startFrom).setSize((int) maxSize).execute().actionGet();
+        }
+        else if (expectedHits <= pageSize && startFrom == 0 && orders.isEmpty()) {
+            // a lookup that should fit in a single page, the scroll is only opened if it turns out it doesn't
+            scrollResponse = searchRequest.setSize(pageSize).execute().actionGet();
+            if (scrollResponse.getHits().getTotalHits() > scrollResponse.getHits().getHits().length)
+                overflowRequest = searchRequest;
+        }
+        else {
+            toSkip = startFrom;
+            scrollResponse = searchRequest.setScroll(settings.keepAlive).setSize(pageSize).execute().actionGet();
+            opened();
+        }
         this.timing.stop("scroll");
+        ElasticMetrics.search(metrics, ElasticMetrics.SEARCHES, scrollResponse);
+        settings.observe(scrollResponse);
+
+        if (settings.prefetch > 0 && scrollId != null) {
+            long wantedHits = Math.min(scrollResponse.getHits().getTotalHits(),
+                    maxSize > Long.MAX_VALUE - startFrom ? Long.MAX_VALUE : startFrom + maxSize);
+            pagesToPrefetch = (wantedHits + pageSize - 1) / pageSize - 1;
+            lastRequest = CompletableFuture.completedFuture(scrollResponse);
+            prefetch();
+        }
 
-        hits = convertFunc.apply(scrollResponse.getHits().iterator());
+        hits = convert(scrollResponse);
     }
 
     ////////////////////////////////////////////////////////////////////////////
     // Methods
     @Override
     public boolean hasNext() {
-        if(allowedRemaining <= 0) return false;
+        if(allowedRemaining <= 0) {
+            close();
+            return false;
+        }
         if(hits.hasNext()) return true;
+        if(overflowRequest != null) {
+            openOverflow();
+            if(hits.hasNext()) return true;
+        }
+        if(scrollId == null) return false;
+        if(lastRequest != null ? hasNextPrefetched() : hasNextScrolled()) return true;
+
+        close();
+        return false;
+    }
+
+    @Override
+    public E next() {
+        allowedRemaining--;
+        // the hits of a page are converted as they're consumed
+        return ElasticMetrics.convert(metrics, hits::next);
+    }
+
+    /**
+     * Clears the scroll context, if it's still open, and ends the iteration.
+     */
+    @Override
+    public void close() {
+        allowedRemaining = 0;
+        hits = Collections.emptyIterator();
+        prefetched.clear();
+        pagesToPrefetch = 0;
+        if (scrollId == null) return;
+        // the prefetched pages still in flight aren't followed by more requests, and the context is cleared once they arrive
+        context.close();
+        scrollId = null;
+    }
+
+    /**
+     * Keeps the state of the scroll context the last response opened.
+     */
+    private void opened() {
+        scrollId = scrollResponse.getScrollId();
+        if (scrollId == null) return;
+        context = ScrollContexts.opened(this, client, scrollId);
+        totalHits = scrollResponse.getHits().getTotalHits();
+        scrolledHits = scrollResponse.getHits().getHits().length;
+    }
+
+    /**
+     * Opens the scroll of a single page lookup that has more hits than expected.
+     */
+    private void openOverflow() {
+        returnedUids = new HashSet<>();
+        for (SearchHit hit : scrollResponse.getHits().getHits()) returnedUids.add(uid(hit));
 
         timing.start("scroll");
-        scrollResponse = client.prepareSearchScroll(scrollResponse.getScrollId()).setScroll(new TimeValue(600000)).execute().actionGet();
+        scrollResponse = overflowRequest.setScroll(settings.keepAlive).execute().actionGet();
         timing.stop("scroll");
+        overflowRequest = null;
+        ElasticMetrics.search(metrics, ElasticMetrics.SEARCHES, scrollResponse);
+        settings.observe(scrollResponse);
+        opened();
+        hits = convert(scrollResponse);
+    }
 
-        hits = convertFunc.apply(scrollResponse.getHits().iterator());
+    /**
+     * Scrolls to the next page that has hits.
+     *
+     * @return whether there are more hits.
+     */
+    private boolean hasNextScrolled() {
+        while (!hits.hasNext()) {
+            // the total hits are known, no need for another request to learn there are no more
+            if (scrolledHits >= totalHits) return false;
+            timing.start("scroll");
+            scrollResponse = client.prepareSearchScroll(scrollId).setScroll(settings.keepAlive).execute().actionGet();
+            timing.stop("scroll");
+            ElasticMetrics.search(metrics, ElasticMetrics.SCROLLS, scrollResponse);
+            settings.observe(scrollResponse);
+            if (scrollResponse.getScrollId() != null) scrollId = scrollResponse.getScrollId();
+            context.update(scrollId);
+            if (scrollResponse.getHits().getHits().length == 0) return false;
+            scrolledHits += scrollResponse.getHits().getHits().length;
+
+            hits = convert(scrollResponse);
+        }
 
-        return hits.hasNext();
+        return true;
     }
 
-    @Override
-    public E next() {
-        allowedRemaining--;
-        return hits.next();
+    /**
+     * Moves on to the next prefetched page that has hits, requesting the pages after it meanwhile.
+     *
+     * @return whether there are more hits.
+     */
+    private boolean hasNextPrefetched() {
+        while (!prefetched.isEmpty()) {
+            timing.start("scroll");
+            try {
+                scrollResponse = prefetched.poll().join();
+            }
+            catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+            finally {
+                timing.stop("scroll");
+            }
+            ElasticMetrics.search(metrics, ElasticMetrics.SCROLLS, scrollResponse);
+            settings.observe(scrollResponse);
+            if (scrollResponse.getScrollId() != null) scrollId = scrollResponse.getScrollId();
+            if (scrollResponse.getHits().getHits().length == 0) return false;
+
+            prefetch();
+            hits = convert(scrollResponse);
+            if (hits.hasNext()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Requests scroll pages ahead until the prefetch depth is reached.
+     * Each request is sent as soon as the previous page arrives, and the sources of the page are parsed
+     * off the consuming thread. The elements are still built by the consumer, as they share lazy getters
+     * and sibling lists with the elements it already holds.
+     */
+    private void prefetch() {
+        // the requests only hold on to the context, so an abandoned iterator can still be collected
+        Client client = this.client;
+        TimeValue keepAlive = settings.keepAlive;
+        ScrollContexts.Context context = this.context;
+        while (prefetched.size() < settings.prefetch && pagesToPrefetch > 0) {
+            pagesToPrefetch--;
+            lastRequest = lastRequest.thenCompose(response -> response.getHits().getHits().length == 0 || !context.send() ?
+                    CompletableFuture.completedFuture(response) : scroll(client, keepAlive, context, response.getScrollId()));
+            prefetched.add(lastRequest.thenApplyAsync(response -> {
+                for (SearchHit hit : response.getHits().getHits()) hit.getSource();
+                return response;
+            }));
+        }
+    }
+
+    /**
+     * Sends a scroll request without waiting for its response.
+     *
+     * @param client the client.
+     * @param keepAlive how long the scroll context is kept alive.
+     * @param context the scroll context, which counted the request as sent.
+     * @param scrollId the scroll id.
+     * @return the future response.
+     */
+    private static CompletableFuture<SearchResponse> scroll(Client client, TimeValue keepAlive, ScrollContexts.Context context,
+                                                            String scrollId) {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute(new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                context.received(response.getScrollId());
+                future.complete(response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                context.received(null);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Converts the hits of a page, within the metrics scope of the step that created the iterator,
+     * so elements fetched lazily later on are reported to it as well.
+     *
+     * @param response the page response.
+     * @return the converted hits.
+     */
+    private Iterator<? extends E> convert(SearchResponse response) {
+        return ElasticMetrics.convert(metrics, () -> convertFunc.apply(skipHits(response.getHits().iterator())));
+    }
+
+    /**
+     * Skips the hits that precede the requested range.
+     *
+     * @param pageHits the hits of the current page.
+     * @return the remaining hits of the page.
+     */
+    private Iterator<SearchHit> skipHits(Iterator<SearchHit> pageHits) {
+        while (toSkip > 0 && pageHits.hasNext()) {
+            pageHits.next();
+            toSkip--;
+        }
+        if (returnedUids == null) return pageHits;
+
+        List<SearchHit> remaining = new ArrayList<>();
+        pageHits.forEachRemaining(hit -> {
+            if (!returnedUids.contains(uid(hit))) remaining.add(hit);
+        });
+        return remaining.iterator();
+    }
+
+    /**
+     * Gets the uid of a hit, unique across the types of the index.
+     *
+     * @param hit the hit.
+     * @return the uid.
+     */
+    private static String uid(SearchHit hit) {
+        return hit.getIndex() + "/" + hit.getType() + "#" + hit.getId();
     }
 }
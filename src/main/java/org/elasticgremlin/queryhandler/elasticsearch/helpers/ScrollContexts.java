@@ -0,0 +1,155 @@
+package org.elasticgremlin.queryhandler.elasticsearch.helpers;
+
+import org.elasticsearch.client.Client;
+
+import java.lang.ref.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the scroll contexts the query iterators opened and didn't clear yet.
+ * A scroll context pins the segments of every shard it covers until it's cleared or its keep-alive expires.
+ * The context of an iterator that's dropped without being closed (e.g. under a limit() that wasn't folded
+ * into the query) is cleared once the iterator is garbage collected and the next scroll context opens.
+ */
+public class ScrollContexts {
+
+    /**
+     * Number of open scroll contexts.
+     */
+    private static final AtomicLong open = new AtomicLong();
+
+    /**
+     * The contexts that weren't closed yet, kept reachable until they are.
+     */
+    private static final Set<Context> contexts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The contexts whose iterators were garbage collected.
+     */
+    private static final ReferenceQueue<Object> abandoned = new ReferenceQueue<>();
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+
+    /**
+     * Gets the number of scrolls opened by query iterators that weren't cleared yet.
+     *
+     * @return the number of open scrolls.
+     */
+    public static long getOpenCount() {
+        return open.get();
+    }
+
+    /**
+     * Keeps track of a scroll context that was opened, and clears the contexts of abandoned iterators.
+     *
+     * @param iterator the iterator scrolling the context.
+     * @param client the client.
+     * @param scrollId the scroll id the search returned.
+     * @return the scroll context.
+     */
+    static Context opened(Object iterator, Client client, String scrollId) {
+        Reference<?> reference;
+        while ((reference = abandoned.poll()) != null) ((Context) reference).close();
+
+        Context context = new Context(iterator, client, scrollId);
+        contexts.add(context);
+        open.incrementAndGet();
+        return context;
+    }
+
+    /**
+     * An open scroll context.
+     * It doesn't reference its iterator, so it can still be cleared once the iterator is garbage collected.
+     */
+    static class Context extends PhantomReference<Object> {
+        /**
+         * The client.
+         */
+        private final Client client;
+
+        /**
+         * The scroll id of the last response.
+         */
+        private String scrollId;
+
+        /**
+         * Number of scroll requests sent without a response yet.
+         */
+        private int requests;
+
+        /**
+         * Whether the context was closed.
+         */
+        private boolean closed;
+
+        private Context(Object iterator, Client client, String scrollId) {
+            super(iterator, abandoned);
+            this.client = client;
+            this.scrollId = scrollId;
+        }
+
+        /**
+         * Counts a scroll request that's about to be sent.
+         *
+         * @return false when the context was closed, and the request mustn't be sent.
+         */
+        synchronized boolean send() {
+            if (closed) return false;
+            requests++;
+            return true;
+        }
+
+        /**
+         * Counts the response of a scroll request, and clears the context if it was closed meanwhile.
+         *
+         * @param scrollId the scroll id of the response, null when the request failed.
+         */
+        void received(String scrollId) {
+            synchronized (this) {
+                requests--;
+                update(scrollId);
+                if (!closed || requests > 0) return;
+            }
+            release();
+        }
+
+        /**
+         * Keeps the scroll id of the last response.
+         *
+         * @param scrollId the scroll id, null to keep the previous one.
+         */
+        synchronized void update(String scrollId) {
+            if (scrollId != null) this.scrollId = scrollId;
+        }
+
+        /**
+         * Closes the context. It's cleared right away, or once the scroll requests still in flight respond,
+         * since their responses may carry a newer scroll id.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                open.decrementAndGet();
+                if (requests > 0) return;
+            }
+            release();
+        }
+
+        /**
+         * Clears the scroll context, without waiting for the response.
+         */
+        private void release() {
+            if (!contexts.remove(this)) return;
+            String scrollId;
+            synchronized (this) {
+                scrollId = this.scrollId;
+            }
+            client.prepareClearScroll().addScrollId(scrollId).execute();
+        }
+    }
+}
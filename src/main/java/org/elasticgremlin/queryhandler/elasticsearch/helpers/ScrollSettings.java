@@ -0,0 +1,214 @@
+package org.elasticgremlin.queryhandler.elasticsearch.helpers;
+
+import org.apache.commons.configuration.Configuration;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.List;
+
+/**
+ * The settings of the searches and scrolls a handler's query iterators send.
+ * When the page size has a range, it adapts to the hits the handler gets back: every response updates
+ * moving averages of the source bytes and the server time per hit, and new searches ask for as many hits as
+ * fit both the target page bytes and the target page latency. A scroll keeps the size it was opened with.
+ */
+public class ScrollSettings {
+
+    /**
+     * The weight of the last response in the moving averages.
+     */
+    private static final double SMOOTHING = 0.3;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Fields
+    /**
+     * The page size until the first response is observed.
+     */
+    private final int initialPageSize;
+
+    /**
+     * The smallest adapted page size.
+     */
+    private final int minPageSize;
+
+    /**
+     * The largest adapted page size.
+     */
+    private final int maxPageSize;
+
+    /**
+     * The source bytes a page should hold.
+     */
+    private final long targetBytes;
+
+    /**
+     * The milliseconds a page should take on the server.
+     */
+    private final long targetMillis;
+
+    /**
+     * The number of scroll pages requested ahead of the consumed one, 0 to scroll on demand.
+     */
+    public final int prefetch;
+
+    /**
+     * Whether unordered scans of the whole range run one concurrent scroll per shard.
+     */
+    public final boolean parallel;
+
+    /**
+     * How long a scroll context is kept alive between two requests of its scroll.
+     */
+    public final TimeValue keepAlive;
+
+    /**
+     * Moving average of the source bytes per hit, 0 until a hit is observed.
+     */
+    private volatile double bytesPerHit;
+
+    /**
+     * Moving average of the server milliseconds per hit.
+     */
+    private volatile double millisPerHit;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+
+    /**
+     * Constructs ScrollSettings with a fixed page size.
+     *
+     * @param pageSize the number of hits per scroll page.
+     * @param prefetch the number of pages to request ahead.
+     * @param parallel whether whole range scans scroll the shards concurrently.
+     * @param keepAlive how long a scroll context is kept alive between two requests.
+     */
+    public ScrollSettings(int pageSize, int prefetch, boolean parallel, TimeValue keepAlive) {
+        this(pageSize, pageSize, pageSize, Long.MAX_VALUE, Long.MAX_VALUE, prefetch, parallel, keepAlive);
+    }
+
+    /**
+     * Constructs ScrollSettings with an adaptive page size.
+     *
+     * @param pageSize the page size until the first response is observed.
+     * @param minPageSize the smallest adapted page size.
+     * @param maxPageSize the largest adapted page size, adaptation is off when it isn't above minPageSize.
+     * @param targetBytes the source bytes a page should hold.
+     * @param targetMillis the milliseconds a page should take on the server.
+     * @param prefetch the number of pages to request ahead.
+     * @param parallel whether whole range scans scroll the shards concurrently.
+     * @param keepAlive how long a scroll context is kept alive between two requests.
+     */
+    public ScrollSettings(int pageSize, int minPageSize, int maxPageSize, long targetBytes, long targetMillis,
+                          int prefetch, boolean parallel, TimeValue keepAlive) {
+        this.initialPageSize = pageSize;
+        this.minPageSize = Math.max(1, minPageSize);
+        this.maxPageSize = maxPageSize;
+        this.targetBytes = targetBytes;
+        this.targetMillis = targetMillis;
+        this.prefetch = prefetch;
+        this.parallel = parallel;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Constructs ScrollSettings from the graph configuration.
+     *
+     * @param configuration the configuration.
+     * @param defaultPageSize the page size when elasticsearch.scrollSize isn't configured.
+     */
+    public ScrollSettings(Configuration configuration, int defaultPageSize) {
+        this(configuration, null, defaultPageSize);
+    }
+
+    /**
+     * Constructs the ScrollSettings of a handler from the graph configuration.
+     * A key under elasticsearch.[handler]. overrides the same key under elasticsearch.,
+     * e.g. elasticsearch.edge.scrollSize overrides elasticsearch.scrollSize for the edge handler.
+     *
+     * @param configuration the configuration.
+     * @param handler the handler's name in the configuration keys, null for the graph wide keys only.
+     * @param defaultPageSize the page size when elasticsearch.scrollSize isn't configured.
+     */
+    public ScrollSettings(Configuration configuration, String handler, int defaultPageSize) {
+        this(configuration.getInt(key(configuration, handler, "scrollSize"), defaultPageSize),
+                configuration.getInt(key(configuration, handler, "scroll.minSize"), 0),
+                configuration.getInt(key(configuration, handler, "scroll.maxSize"), 0),
+                configuration.getLong(key(configuration, handler, "scroll.targetBytes"), 1024 * 1024),
+                configuration.getLong(key(configuration, handler, "scroll.targetMillis"), 200),
+                configuration.getInt(key(configuration, handler, "scroll.prefetch"), 0),
+                configuration.getBoolean(key(configuration, handler, "scroll.parallel"), false),
+                TimeValue.parseTimeValue(configuration.getString(key(configuration, handler, "scroll.keepAlive"), "1m"), null,
+                        key(configuration, handler, "scroll.keepAlive")));
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+
+    /**
+     * Gets the number of hits a new search asks for per page.
+     *
+     * @return the page size.
+     */
+    public int getPageSize() {
+        double bytes = bytesPerHit;
+        if (!isAdaptive() || bytes == 0) return initialPageSize;
+
+        double pageSize = targetBytes / bytes;
+        double millis = millisPerHit;
+        if (millis > 0) pageSize = Math.min(pageSize, targetMillis / millis);
+        return (int) Math.max(minPageSize, Math.min(maxPageSize, pageSize));
+    }
+
+    /**
+     * Updates the moving averages with the hits of a response.
+     *
+     * @param response the response of a search or scroll request.
+     */
+    public void observe(SearchResponse response) {
+        SearchHit[] hits = response.getHits().getHits();
+        if (!isAdaptive() || hits.length == 0) return;
+
+        long sourceBytes = 0;
+        for (SearchHit hit : hits)
+            if (hit.sourceRef() != null) sourceBytes += hit.sourceRef().length();
+        // a hit without source still costs its metadata
+        double bytes = Math.max(1, (double) sourceBytes / hits.length);
+        double millis = (double) response.getTookInMillis() / hits.length;
+
+        // concurrent updates may lose one another's sample, which only slows the averages down
+        bytesPerHit = bytesPerHit == 0 ? bytes : SMOOTHING * bytes + (1 - SMOOTHING) * bytesPerHit;
+        millisPerHit = millisPerHit == 0 ? millis : SMOOTHING * millis + (1 - SMOOTHING) * millisPerHit;
+    }
+
+    /**
+     * Whether the page size adapts to the observed hits.
+     *
+     * @return whether the page size has a range.
+     */
+    public boolean isAdaptive() {
+        return minPageSize < maxPageSize;
+    }
+
+    /**
+     * Whether a query is scanned by one scroll per shard.
+     *
+     * @param orders the orders of the query.
+     * @param startFrom number of hits to skip.
+     * @param maxSize maximum number of hits.
+     * @param expectedHits the most hits the query is expected to match.
+     * @return whether the query is an unordered scan of the whole range, too big for a single page,
+     * and parallel scans are enabled.
+     */
+    public boolean isParallelScan(List<?> orders, long startFrom, long maxSize, long expectedHits) {
+        return parallel && orders.isEmpty() && startFrom == 0 && maxSize == Long.MAX_VALUE && expectedHits > getPageSize();
+    }
+
+    private static String key(Configuration configuration, String handler, String key) {
+        String handlerKey = "elasticsearch." + handler + "." + key;
+        return handler != null && configuration.containsKey(handlerKey) ? handlerKey : "elasticsearch." + key;
+    }
+}
@@ -0,0 +1,325 @@
+package org.elasticgremlin.queryhandler.elasticsearch.helpers;
+
+import org.apache.tinkerpop.gremlin.process.traversal.util.MutableMetrics;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.*;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.*;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+import org.javatuples.Pair;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * An iterator over all the hits matching a filter, in no particular order, scrolled by one scroll per shard.
+ * The scrolls run concurrently, each requesting its next pages as soon as the previous one arrives,
+ * and their pages are merged in the order they arrive.
+ * The scroll context of a shard is cleared once it's exhausted, and all of them when the iterator is closed
+ * or garbage collected.
+ * @param <E> the type of the converted hits.
+ */
+public class ShardScanIterator<E> implements Iterator<E>, AutoCloseable {
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Fields
+    /**
+     * The client.
+     */
+    private final Client client;
+
+    /**
+     * The scroll settings.
+     */
+    private final ScrollSettings settings;
+
+    /**
+     * Conversion function.
+     */
+    private final Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc;
+
+    /**
+     * Timing accessor.
+     */
+    private final TimingAccessor timing;
+
+    /**
+     * The metrics of the profiled step that created the iterator, null when not profiled.
+     */
+    private final MutableMetrics metrics;
+
+    /**
+     * The pages received from all the shards and not consumed yet.
+     */
+    private final BlockingQueue<Page> pages = new LinkedBlockingQueue<>();
+
+    /**
+     * The scroll states of the shards.
+     */
+    private final List<Shard> shards = new ArrayList<>();
+
+    /**
+     * Number of shards whose scroll isn't exhausted yet.
+     */
+    private int activeShards;
+
+    /**
+     * Whether the iterator was closed, the pages arriving afterwards are dropped.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Iterator of hits.
+     */
+    private Iterator<? extends E> hits = Collections.emptyIterator();
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Constructors
+
+    /**
+     * Constructs ShardScanIterator and starts the scroll of every shard.
+     *
+     * @param filter the filter.
+     * @param includes the source fields to fetch, null for the whole source.
+     * @param settings the scroll settings.
+     * @param client the client.
+     * @param convertFunc the conversion function.
+     * @param refresher refreshes the indices before reads that follow writes.
+     * @param timing the timing.
+     * @param index the index.
+     * @param indexShards the concrete index and the id of every shard the index resolves to.
+     */
+    public ShardScanIterator(QueryBuilder filter, String[] includes, ScrollSettings settings, Client client,
+                             Function<Iterator<SearchHit>, Iterator<? extends E>> convertFunc,
+                             IndexRefresher refresher, TimingAccessor timing, String index,
+                             List<Pair<String, Integer>> indexShards) {
+        this.client = client;
+        this.settings = settings;
+        this.convertFunc = convertFunc;
+        this.timing = timing;
+        this.metrics = ElasticMetrics.current();
+
+        refresher.refresh(index);
+        QueryBuilder query = QueryBuilders.boolQuery().must(QueryBuilders.matchAllQuery()).filter(filter);
+        ElasticMetrics.query(metrics, query);
+
+        int pageSize = settings.getPageSize();
+        ElasticMetrics.pageSize(metrics, pageSize);
+        activeShards = indexShards.size();
+        for (Pair<String, Integer> indexShard : indexShards) {
+            SearchRequestBuilder searchRequest = client.prepareSearch(indexShard.getValue0()).setQuery(query)
+                    .setPreference("_shards:" + indexShard.getValue1())
+                    .addSort("_doc", SortOrder.ASC)
+                    .setScroll(settings.keepAlive)
+                    .setSize(pageSize);
+            if (includes != null) searchRequest.setFetchSource(includes, null);
+            Shard shard = new Shard();
+            shards.add(shard);
+            searchRequest.execute(new PageListener(shard, ElasticMetrics.SEARCHES));
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Methods
+    @Override
+    public boolean hasNext() {
+        while (!hits.hasNext()) {
+            if (activeShards == 0 || closed) return false;
+            Page page = take();
+            if (page.failure != null) close();
+            if (page.failure instanceof RuntimeException) throw (RuntimeException) page.failure;
+            if (page.failure != null) throw new IllegalStateException(page.failure);
+
+            ElasticMetrics.search(metrics, page.request, page.response);
+            settings.observe(page.response);
+            if (page.response.getHits().getHits().length == 0) {
+                activeShards--;
+                continue;
+            }
+            consumed(page.shard);
+            hits = convert(page.response);
+        }
+        return true;
+    }
+
+    @Override
+    public E next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        // the hits of a page are converted as they're consumed
+        return ElasticMetrics.convert(metrics, hits::next);
+    }
+
+    /**
+     * Clears the scroll contexts of the shards that aren't exhausted yet, and ends the iteration.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        hits = Collections.emptyIterator();
+        pages.clear();
+        shards.forEach(this::clear);
+    }
+
+    /**
+     * Clears the scroll context of a shard, if it's still open.
+     * A scroll request still in flight is waited for, its response may carry a newer scroll id.
+     *
+     * @param shard the shard.
+     */
+    private void clear(Shard shard) {
+        synchronized (shard) {
+            if (shard.context != null) shard.context.close();
+        }
+    }
+
+    /**
+     * Waits for the next page of any shard.
+     *
+     * @return the page.
+     */
+    private Page take() {
+        timing.start("scroll");
+        try {
+            return pages.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        finally {
+            timing.stop("scroll");
+        }
+    }
+
+    /**
+     * Resumes the scroll of a shard that waited for its buffered pages to be consumed.
+     *
+     * @param shard the shard of the consumed page.
+     */
+    private void consumed(Shard shard) {
+        boolean resume;
+        synchronized (shard) {
+            shard.buffered--;
+            resume = shard.paused;
+            shard.paused = false;
+        }
+        if (resume) scroll(shard);
+    }
+
+    /**
+     * Requests the next page of a shard.
+     *
+     * @param shard the shard.
+     */
+    private void scroll(Shard shard) {
+        String scrollId;
+        synchronized (shard) {
+            if (shard.context == null || !shard.context.send()) return;
+            scrollId = shard.scrollId;
+        }
+        client.prepareSearchScroll(scrollId).setScroll(settings.keepAlive)
+                .execute(new PageListener(shard, ElasticMetrics.SCROLLS));
+    }
+
+    /**
+     * Converts the hits of a page, within the metrics scope of the step that created the iterator.
+     *
+     * @param response the page response.
+     * @return the converted hits.
+     */
+    private Iterator<? extends E> convert(SearchResponse response) {
+        return ElasticMetrics.convert(metrics, () -> convertFunc.apply(Arrays.asList(response.getHits().getHits()).iterator()));
+    }
+
+    /**
+     * The scroll state of a shard.
+     */
+    private static class Shard {
+        /**
+         * The scroll id of the last page.
+         */
+        private String scrollId;
+
+        /**
+         * The scroll context, null until the first page arrives.
+         */
+        private ScrollContexts.Context context;
+
+        /**
+         * Number of pages received and not consumed yet.
+         */
+        private int buffered;
+
+        /**
+         * Whether the scroll waits for the consumer before requesting the next page.
+         */
+        private boolean paused;
+    }
+
+    /**
+     * A page of a shard, or the failure to get it.
+     */
+    private static class Page {
+        private final Shard shard;
+        private final String request;
+        private final SearchResponse response;
+        private final Throwable failure;
+
+        private Page(Shard shard, String request, SearchResponse response, Throwable failure) {
+            this.shard = shard;
+            this.request = request;
+            this.response = response;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Queues the pages of a shard, and requests the next one while the shard's buffer has room.
+     */
+    private class PageListener implements ActionListener<SearchResponse> {
+        private final Shard shard;
+        private final String request;
+
+        private PageListener(Shard shard, String request) {
+            this.shard = shard;
+            this.request = request;
+        }
+
+        @Override
+        public void onResponse(SearchResponse response) {
+            boolean exhausted = response.getHits().getHits().length == 0;
+            boolean next = false;
+            synchronized (shard) {
+                if (request.equals(ElasticMetrics.SEARCHES) && response.getScrollId() != null)
+                    shard.context = ScrollContexts.opened(ShardScanIterator.this, client, response.getScrollId());
+                else if (shard.context != null) shard.context.received(response.getScrollId());
+                if (response.getScrollId() != null) shard.scrollId = response.getScrollId();
+                if (closed || exhausted) clear(shard);
+                else {
+                    shard.buffered++;
+                    next = shard.buffered < Math.max(1, settings.prefetch);
+                    shard.paused = !next;
+                }
+            }
+            if (closed) return;
+
+            // parsed here, off the consuming thread
+            for (SearchHit hit : response.getHits().getHits()) hit.getSource();
+            pages.add(new Page(shard, request, response, null));
+            if (next) scroll(shard);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            synchronized (shard) {
+                if (request.equals(ElasticMetrics.SCROLLS) && shard.context != null) shard.context.received(null);
+            }
+            if (!closed) pages.add(new Page(shard, request, null, e));
+        }
+    }
+}
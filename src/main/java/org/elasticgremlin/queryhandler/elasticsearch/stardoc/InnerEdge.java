@@ -3,7 +3,6 @@ package org.elasticgremlin.queryhandler.elasticsearch.stardoc;
 import org.apache.tinkerpop.gremlin.structure.*;
 import org.apache.tinkerpop.gremlin.structure.util.StringFactory;
 import org.elasticgremlin.structure.*;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 public class InnerEdge extends BaseEdge {
 
@@ -21,17 +20,17 @@ public class InnerEdge extends BaseEdge {
 
     @Override
     protected void innerRemoveProperty(Property property) {
-        throw new NotImplementedException();
+        throw new UnsupportedOperationException();
     }
 
     @Override
     protected void innerRemove() {
-        throw new NotImplementedException();
+        throw new UnsupportedOperationException();
     }
 
     @Override
     protected void innerAddProperty(BaseProperty vertexProperty) {
-        throw new NotImplementedException();
+        throw new UnsupportedOperationException();
     }
 
     public EdgeMapping getMapping() {
@@ -37,14 +37,19 @@ public class StarHandler implements VertexHandler, EdgeHandler {
     private ElasticMutations elasticMutations;
 
     /**
-     * The scroll size.
+     * The scroll settings.
      */
-    private final int scrollSize;
+    private final ScrollSettings scrollSettings;
 
     /**
-     * The refresh.
+     * Refreshes the indices before reads that follow writes.
      */
-    private final boolean refresh;
+    private final IndexRefresher refresher;
+
+    /**
+     * The cache of the query results.
+     */
+    private final QueryCache queryCache;
 
     /**
      * The timing accessor.
@@ -82,14 +87,15 @@ public class StarHandler implements VertexHandler, EdgeHandler {
      * @param client the client.
      * @param elasticMutations the elastic mutations
      * @param indexName the index name.
-     * @param scrollSize the scroll size.
-     * @param refresh the refresh flag.
+     * @param scrollSettings the scroll settings.
+     * @param refresher refreshes the index before reads that follow writes.
+     * @param queryCache the cache of the query results.
      * @param timing the timing accessor.
      * @param edgeMappings the edge mappings
      */
     public StarHandler(ElasticGraph graph, Client client, ElasticMutations elasticMutations, String indexName,
-                       int scrollSize, boolean refresh, TimingAccessor timing, EdgeMapping... edgeMappings) {
-        this(graph, client, elasticMutations, new String[] {indexName}, scrollSize, refresh, timing, edgeMappings);
+                       ScrollSettings scrollSettings, IndexRefresher refresher, QueryCache queryCache, TimingAccessor timing, EdgeMapping... edgeMappings) {
+        this(graph, client, elasticMutations, new String[] {indexName}, scrollSettings, refresher, queryCache, timing, edgeMappings);
     }
 
     /**
@@ -99,19 +105,21 @@ public class StarHandler implements VertexHandler, EdgeHandler {
      * @param client the client.
      * @param elasticMutations the elastic mutations
      * @param indices the indices.
-     * @param scrollSize the scroll size.
-     * @param refresh the refresh flag.
+     * @param scrollSettings the scroll settings.
+     * @param refresher refreshes the index before reads that follow writes.
+     * @param queryCache the cache of the query results.
      * @param timing the timing accessor.
      * @param edgeMappings the edge mappings
      */
     public StarHandler(ElasticGraph graph, Client client, ElasticMutations elasticMutations, String[] indices,
-                       int scrollSize, boolean refresh, TimingAccessor timing, EdgeMapping... edgeMappings) {
+                       ScrollSettings scrollSettings, IndexRefresher refresher, QueryCache queryCache, TimingAccessor timing, EdgeMapping... edgeMappings) {
         this.graph = graph;
         this.client = client;
         this.elasticMutations = elasticMutations;
         this.indices = indices;
-        this.scrollSize = scrollSize;
-        this.refresh = refresh;
+        this.scrollSettings = scrollSettings;
+        this.refresher = refresher;
+        this.queryCache = queryCache;
         this.timing = timing;
         this.edgeMappings = edgeMappings;
         this.lazyGetters = new HashMap<>();
@@ -140,9 +148,11 @@ public class StarHandler implements VertexHandler, EdgeHandler {
 
     @Override
     public Iterator<? extends Vertex> vertices(Predicates predicates) {
-        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates.hasContainers);
-        return new QueryIterator<>(boolFilter, 0, scrollSize, predicates.limitHigh - predicates.limitLow,
-                client, this::createVertex, refresh, timing, indices);
+        return queryCache.get(this, predicates, this::createVertex, convertFunc -> {
+            BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+            return new QueryIterator<>(boolFilter, predicates.orders, null, predicates.limitLow, scrollSettings, predicates.limitHigh - predicates.limitLow,
+                    ElasticHelper.getExpectedHits(predicates), client, convertFunc, refresher, timing, indices);
+        });
     }
 
 
@@ -179,15 +189,24 @@ public class StarHandler implements VertexHandler, EdgeHandler {
 
     @Override
     public Iterator<Edge> edges(Predicates predicates) {
+        // the range is global, each vertex may contribute up to its high bound, unless the edges are sorted first
+        boolean sorted = !predicates.orders.isEmpty();
+        Predicates vertexPredicates = new Predicates();
+        vertexPredicates.hasContainers = predicates.hasContainers;
+        vertexPredicates.boolContainers = predicates.boolContainers;
+        if (!sorted) vertexPredicates.limitHigh = predicates.limitHigh;
+
         Iterator<? extends Vertex> vertices = vertices();
         List<Edge> edges = new ArrayList<>();
-        vertices.forEachRemaining(vertex -> {
-            ((BaseVertex)vertex).edges(Direction.IN, new String[0], predicates).forEachRemaining(edges::add);
-            ((BaseVertex)vertex).edges(Direction.OUT, new String[0], predicates).forEachRemaining(edges::add);
-            ((BaseVertex)vertex).edges(Direction.BOTH, new String[0], predicates).forEachRemaining(edges::add);
-        });
+        while (vertices.hasNext() && (sorted || edges.size() < predicates.limitHigh)) {
+            BaseVertex vertex = (BaseVertex) vertices.next();
+            vertex.edges(Direction.IN, new String[0], vertexPredicates).forEachRemaining(edges::add);
+            vertex.edges(Direction.OUT, new String[0], vertexPredicates).forEachRemaining(edges::add);
+            vertex.edges(Direction.BOTH, new String[0], vertexPredicates).forEachRemaining(edges::add);
+        }
 
-        return edges.iterator();
+        if (sorted) edges.sort(ElasticHelper.createComparator(predicates.orders));
+        return edges.stream().skip(predicates.limitLow).limit(predicates.limitHigh - predicates.limitLow).iterator();
     }
 
     @Override
@@ -195,7 +214,7 @@ public class StarHandler implements VertexHandler, EdgeHandler {
         List<Object> vertexIds = new ArrayList<>();
         vertices.forEachRemaining(singleVertex -> vertexIds.add(singleVertex.id()));
 
-        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates.hasContainers);
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
         OrQueryBuilder mappingFilter = QueryBuilders.orQuery();
         boolean empty = true;
         for (EdgeMapping mapping : edgeMappings) {
@@ -207,21 +226,32 @@ public class StarHandler implements VertexHandler, EdgeHandler {
             boolFilter.must(mappingFilter);
         }
 
-        QueryIterator<Vertex> vertexSearchQuery = new QueryIterator<>(boolFilter, 0, scrollSize,
-                predicates.limitHigh - predicates.limitLow, client, this::createVertex, refresh, timing, indices);
-
+        QueryIterator<Vertex> vertexSearchQuery = new QueryIterator<>(boolFilter, 0, scrollSettings,
+                Long.MAX_VALUE, client, this::createVertex, refresher, timing, indices);
 
+        // the range applies to each vertex separately, stop scrolling once every vertex got its share
+        Map<Object, Long> counts = new HashMap<>();
+        long fullVertices = 0;
         Map<Object, Set<Edge>> results = new HashMap<>();
-        vertexSearchQuery.forEachRemaining(otherVertex ->
-                otherVertex.edges(direction, edgeLabels).forEachRemaining(edge -> {
-                    Vertex vertex = BaseVertex.vertexToVertex(otherVertex, edge, direction);
-                    Set<Edge> resultEdges = results.get(vertex.id());
-                    if (resultEdges == null) {
-                        resultEdges = new HashSet<>();
-                        results.put(vertex.id(), resultEdges);
-                    }
-                    resultEdges.add(edge);
-        }));
+        while (fullVertices < vertexIds.size() && vertexSearchQuery.hasNext()) {
+            Vertex otherVertex = vertexSearchQuery.next();
+            Iterator<Edge> edges = otherVertex.edges(direction, edgeLabels);
+            while (edges.hasNext()) {
+                Edge edge = edges.next();
+                Vertex vertex = BaseVertex.vertexToVertex(otherVertex, edge, direction);
+                long count = counts.getOrDefault(vertex.id(), 0L);
+                counts.put(vertex.id(), count + 1);
+                if (count + 1 == predicates.limitHigh) fullVertices++;
+                if (count < predicates.limitLow || count >= predicates.limitHigh) continue;
+
+                Set<Edge> resultEdges = results.get(vertex.id());
+                if (resultEdges == null) {
+                    resultEdges = new HashSet<>();
+                    results.put(vertex.id(), resultEdges);
+                }
+                resultEdges.add(edge);
+            }
+        }
 
         return results;
     }
@@ -371,14 +401,12 @@ public class StarHandler implements VertexHandler, EdgeHandler {
      * @return iterator of the vertices created.
      */
     private Iterator<? extends Vertex> createVertex(Iterator<SearchHit> hits) {
-        ArrayList<BaseVertex> vertices = new ArrayList<>();
-        hits.forEachRemaining(hit -> {
+        return new LazyPage<BaseVertex>(hits, (hit, page) -> {
             StarVertex vertex = new StarVertex(hit.id(), hit.getType(), null, graph, null, elasticMutations, hit.getIndex(), edgeMappings);
             vertex.setFields(hit.getSource());
-            vertex.setSiblings(vertices);
-            vertices.add(vertex);
-        });
-        return vertices.iterator();
+            vertex.setSiblings(page);
+            return vertex;
+        }).iterator();
     }
 
     /**
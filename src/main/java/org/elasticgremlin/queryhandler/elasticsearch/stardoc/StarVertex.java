@@ -3,7 +3,7 @@ package org.elasticgremlin.queryhandler.elasticsearch.stardoc;
 import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
 import org.apache.tinkerpop.gremlin.structure.*;
 import org.elasticgremlin.queryhandler.elasticsearch.helpers.*;
-import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticgremlin.queryhandler.*;
 import org.elasticgremlin.structure.*;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.get.MultiGetItemResponse;
@@ -93,6 +93,11 @@ public class StarVertex extends BaseVertex {
                         passed = false;
                     }
                 }
+                for (BoolContainer boolContainer : predicates.boolContainers) {
+                    if (!boolContainer.test(edge)) {
+                        passed = false;
+                    }
+                }
                 if (passed) {
                     edges.add(edge);
                 }
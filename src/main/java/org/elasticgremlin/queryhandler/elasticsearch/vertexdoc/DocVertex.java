@@ -11,6 +11,7 @@ public class DocVertex extends BaseVertex {
     private final ElasticMutations elasticMutations;
     private final String indexName;
     private LazyGetter lazyGetter;
+    private Set<String> loadedKeys;
 
     public DocVertex(final Object id, final String label, Object[] keyValues, ElasticGraph graph, LazyGetter lazyGetter, ElasticMutations elasticMutations, String indexName) {
         super(id, label, graph, keyValues, elasticMutations);
@@ -22,6 +23,18 @@ public class DocVertex extends BaseVertex {
         }
     }
 
+    public void setPartial(LazyGetter lazyGetter, Collection<String> loadedKeys) {
+        this.lazyGetter = lazyGetter;
+        this.loadedKeys = new HashSet<>(loadedKeys);
+        lazyGetter.register(this, this.indexName);
+    }
+
+    private boolean isLoaded(String... keys) {
+        if (loadedKeys == null || keys.length == 0) return false;
+        for (String key : keys) if (!loadedKeys.contains(key)) return false;
+        return true;
+    }
+
     @Override
     public String label() {
         if (this.label == null && lazyGetter != null) lazyGetter.execute();
@@ -40,7 +53,7 @@ public class DocVertex extends BaseVertex {
 
     @Override
     public <V> VertexProperty<V> property(final String key) {
-        if (lazyGetter != null) lazyGetter.execute();
+        if (lazyGetter != null && !isLoaded(key)) lazyGetter.execute();
         return super.property(key);
     }
 
@@ -61,7 +74,13 @@ public class DocVertex extends BaseVertex {
 
     @Override
     public <V> Iterator<VertexProperty<V>> properties(final String... propertyKeys) {
-        if (lazyGetter != null) lazyGetter.execute();
+        if (lazyGetter != null && !isLoaded(propertyKeys)) lazyGetter.execute();
         return super.properties(propertyKeys);
     }
+
+    @Override
+    public Set<String> keys() {
+        if (lazyGetter != null) lazyGetter.execute();
+        return super.keys();
+    }
 }
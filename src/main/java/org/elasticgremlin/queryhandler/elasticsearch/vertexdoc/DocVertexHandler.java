@@ -9,8 +9,11 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.javatuples.Pair;
 
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * The handler for handling document as a vertex.
@@ -41,14 +44,24 @@ public class DocVertexHandler implements VertexHandler {
     private String indexName;
 
     /**
-     * The scroll size.
+     * The concrete index and the id of every shard the index name resolves to.
      */
-    private final int scrollSize;
+    private final List<Pair<String, Integer>> indexShards;
 
     /**
-     * The refresh flag.
+     * The scroll settings.
      */
-    private final boolean refresh;
+    private final ScrollSettings scrollSettings;
+
+    /**
+     * Refreshes the index before reads that follow writes.
+     */
+    private final IndexRefresher refresher;
+
+    /**
+     * The cache of the query results.
+     */
+    private final QueryCache queryCache;
 
     /**
      * The timing accessor.
@@ -76,18 +89,23 @@ public class DocVertexHandler implements VertexHandler {
      * @param client the client.
      * @param elasticMutations the elastic mutations.
      * @param indexName the index name.
-     * @param scrollSize the scroll size.
-     * @param refresh the refresh flag.
+     * @param indexShards the concrete index and the id of every shard the index name resolves to.
+     * @param scrollSettings the scroll settings.
+     * @param refresher refreshes the index before reads that follow writes.
+     * @param queryCache the cache of the query results.
      * @param timing the timing accessor.
      */
     public DocVertexHandler(ElasticGraph graph, Client client, ElasticMutations elasticMutations, String indexName,
-                            int scrollSize, boolean refresh, TimingAccessor timing) {
+                            List<Pair<String, Integer>> indexShards,
+                            ScrollSettings scrollSettings, IndexRefresher refresher, QueryCache queryCache, TimingAccessor timing) {
         this.graph = graph;
         this.client = client;
         this.elasticMutations = elasticMutations;
         this.indexName = indexName;
-        this.scrollSize = scrollSize;
-        this.refresh = refresh;
+        this.indexShards = indexShards;
+        this.scrollSettings = scrollSettings;
+        this.refresher = refresher;
+        this.queryCache = queryCache;
         this.timing = timing;
         this.lazyGetters = new HashMap<>();
     }
@@ -98,8 +116,11 @@ public class DocVertexHandler implements VertexHandler {
 
     @Override
     public Iterator<Vertex> vertices() {
-        return new QueryIterator<>(QueryBuilders.missingQuery(DocEdge.InId), 0, scrollSize,
-                Integer.MAX_VALUE, client, this::createVertex, refresh, timing, indexName);
+        if (scrollSettings.parallel)
+            return new ShardScanIterator<>(QueryBuilders.missingQuery(DocEdge.InId), null, scrollSettings,
+                    client, hits -> createVertex(hits, null), refresher, timing, indexName, indexShards);
+        return new QueryIterator<>(QueryBuilders.missingQuery(DocEdge.InId), 0, scrollSettings,
+                Integer.MAX_VALUE, client, hits -> createVertex(hits, null), refresher, timing, indexName);
     }
 
     @Override
@@ -115,10 +136,94 @@ public class DocVertexHandler implements VertexHandler {
 
     @Override
     public Iterator<Vertex> vertices(Predicates predicates) {
-        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates.hasContainers);
+        String[] includes = predicates.includes.isEmpty() ? null : predicates.includes.toArray(new String[predicates.includes.size()]);
+        return queryCache.get(this, predicates, hits -> createVertex(hits, includes),
+                convertFunc -> search(predicates, includes, convertFunc));
+    }
+
+    /**
+     * Searches the vertices of the ids that match the predicates.
+     * The ids change from batch to batch, so they're kept out of the memoized filters and the query isn't cached.
+     *
+     * @param vertexIds the ids of the vertices.
+     * @param predicates the predicates.
+     * @return the vertices.
+     */
+    public Iterator<Vertex> vertices(Set<Object> vertexIds, Predicates predicates) {
+        String[] includes = predicates.includes.isEmpty() ? null : predicates.includes.toArray(new String[predicates.includes.size()]);
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+        boolFilter.filter(QueryBuilders.idsQuery().addIds(vertexIds.stream().map(Object::toString).toArray(String[]::new)));
+        boolFilter.must(QueryBuilders.missingQuery(DocEdge.InId));
+        return new QueryIterator<>(boolFilter, Collections.emptyList(), includes, 0, scrollSettings,
+                Long.MAX_VALUE, vertexIds.size(), client, hits -> createVertex(hits, includes), refresher, timing, indexName);
+    }
+
+    /**
+     * Searches the vertices matching the predicates.
+     *
+     * @param predicates the predicates.
+     * @param includes the source fields to fetch, null for the whole source.
+     * @param convertFunc the conversion function.
+     * @return the vertices.
+     */
+    private Iterator<Vertex> search(Predicates predicates, String[] includes,
+                                    Function<Iterator<SearchHit>, Iterator<? extends Vertex>> convertFunc) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+        boolFilter.must(QueryBuilders.missingQuery(DocEdge.InId));
+        if (scrollSettings.isParallelScan(predicates.orders, predicates.limitLow, predicates.limitHigh - predicates.limitLow,
+                ElasticHelper.getExpectedHits(predicates)))
+            return new ShardScanIterator<>(boolFilter, includes, scrollSettings,
+                    client, convertFunc, refresher, timing, indexName, indexShards);
+        return new QueryIterator<>(boolFilter, predicates.orders, includes, predicates.limitLow, scrollSettings,
+                predicates.limitHigh - predicates.limitLow, ElasticHelper.getExpectedHits(predicates), client,
+                convertFunc, refresher, timing, indexName);
+    }
+
+    /**
+     * Counts the vertices matching the predicates.
+     *
+     * @param predicates the predicates.
+     * @return the number of matching vertices, regardless of the predicates' range.
+     */
+    public long count(Predicates predicates) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+        boolFilter.must(QueryBuilders.missingQuery(DocEdge.InId));
+        timing.start("count");
+        long count = ElasticHelper.count(client, boolFilter, refresher, indexName);
+        timing.stop("count");
+        return count;
+    }
+
+    /**
+     * Counts the vertices matching the predicates per value of a property.
+     *
+     * @param predicates the predicates.
+     * @param key the property key, or the label accessor.
+     * @return the number of matching vertices per value.
+     */
+    public Map<Object, Long> groupCount(Predicates predicates, String key) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
         boolFilter.must(QueryBuilders.missingQuery(DocEdge.InId));
-        return new QueryIterator<>(boolFilter, 0, scrollSize, predicates.limitHigh - predicates.limitLow,
-                client, this::createVertex, refresh, timing, indexName);
+        timing.start("groupCount");
+        Map<Object, Long> groups = ElasticHelper.groupCount(client, boolFilter, key, refresher, indexName);
+        timing.stop("groupCount");
+        return groups;
+    }
+
+    /**
+     * Computes the statistics of a numeric property over the vertices matching the predicates.
+     *
+     * @param predicates the predicates.
+     * @param key the property key.
+     * @return the statistics of the property's values.
+     */
+    public Stats stats(Predicates predicates, String key) {
+        BoolQueryBuilder boolFilter = ElasticHelper.createFilterBuilder(predicates, queryCache);
+        boolFilter.must(QueryBuilders.missingQuery(DocEdge.InId));
+        timing.start("stats");
+        Stats stats = ElasticHelper.stats(client, boolFilter, key, refresher, indexName);
+        timing.stop("stats");
+        return stats;
     }
 
     @Override
@@ -170,16 +275,21 @@ public class DocVertexHandler implements VertexHandler {
      * Creates vertex.
      *
      * @param hits search hit result.
+     * @param includes the fetched source fields, null if the whole source was fetched.
      * @return iterator of vertex created.
      */
-    private Iterator<? extends Vertex> createVertex(Iterator<SearchHit> hits) {
-        ArrayList<BaseVertex> vertices = new ArrayList<>();
-        hits.forEachRemaining(hit -> {
-            BaseVertex vertex = new DocVertex(hit.id(), hit.getType(), null, graph, null, elasticMutations, indexName);
-            vertex.setSiblings(vertices);
+    private Iterator<? extends Vertex> createVertex(Iterator<SearchHit> hits, String[] includes) {
+        return new LazyPage<BaseVertex>(hits, (hit, page) -> {
+            DocVertex vertex = new DocVertex(hit.id(), hit.getType(), null, graph, null, elasticMutations, indexName);
+            // the rest of a partial source is fetched for the whole page once any vertex needs it
+            if (includes != null) {
+                LazyGetter lazyGetter = getLazyGetter();
+                vertex.setPartial(lazyGetter, Arrays.asList(includes));
+                lazyGetter.register(page);
+            }
+            vertex.setSiblings(page);
             hit.getSource().entrySet().forEach((field) -> vertex.addPropertyLocal(field.getKey(), field.getValue()));
-            vertices.add(vertex);
-        });
-        return vertices.iterator();
+            return vertex;
+        }).iterator();
     }
 }
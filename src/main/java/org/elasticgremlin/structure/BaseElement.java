@@ -2,6 +2,7 @@ package org.elasticgremlin.structure;
 
 import org.apache.tinkerpop.gremlin.structure.*;
 import org.apache.tinkerpop.gremlin.structure.util.ElementHelper;
+import org.elasticsearch.action.get.MultiGetItemResponse;
 
 import java.util.*;
 
@@ -207,6 +208,16 @@ public abstract class BaseElement implements Element{
         return map;
     }
 
+    /**
+     * Applies lazy fields.
+     *
+     * @param response the multi get response of the element's document.
+     */
+    public void applyLazyFields(MultiGetItemResponse response) {
+        response.getResponse().getSource().entrySet().forEach((field) ->
+                addPropertyLocal(field.getKey(), field.getValue()));
+    }
+
     /**
      * Sets the label.
      *
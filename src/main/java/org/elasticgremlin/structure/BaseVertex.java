@@ -1,13 +1,14 @@
 package org.elasticgremlin.structure;
 
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
 import org.apache.tinkerpop.gremlin.structure.*;
 import org.apache.tinkerpop.gremlin.structure.util.*;
-import org.apache.tinkerpop.gremlin.util.iterator.IteratorUtils;
-import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticgremlin.queryhandler.*;
 import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticMutations;
 import org.elasticsearch.action.get.MultiGetItemResponse;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * The base vertex implementation.
@@ -26,6 +27,16 @@ public abstract class BaseVertex extends BaseElement implements Vertex {
      */
     private HashMap<EdgeQueryInfo, Set<Edge>> queriedEdges = new HashMap<>();
 
+    /**
+     * A map containing adjacent vertex query info as the key and a list of the adjacent vertices passing its predicates as the value.
+     */
+    private HashMap<EdgeQueryInfo, List<Vertex>> queriedVertices = new HashMap<>();
+
+    /**
+     * A map containing edge query info as the key and a list of the vertices at the other end of the matching edges as the value.
+     */
+    private HashMap<EdgeQueryInfo, List<Vertex>> queriedAdjacentVertices = new HashMap<>();
+
     /**
      * A list of vertex siblings.
      */
@@ -72,21 +83,104 @@ public abstract class BaseVertex extends BaseElement implements Vertex {
     }
 
     /**
-     * Adds vertices to the other end of the edge defined by the direction, label and predicates.
+     * Gets the vertices at the other end of the edges defined by the direction and label, that pass the predicates.
      * @param direction the direction of the edge.
      * @param edgeLabels the label of the edge.
-     * @param predicates the predicates for the edge.
-     * @return iterator of the added vertices.
+     * @param predicates the predicates for the adjacent vertices, their high limit caps the vertices per this vertex.
+     * @return iterator of the adjacent vertices.
      */
     public Iterator<Vertex> vertices(Direction direction, String[] edgeLabels, Predicates predicates) {
         checkRemoved();
-        Iterator<Edge> edgeIterator = edges(direction, edgeLabels, predicates);
-        ArrayList<Vertex> vertices = new ArrayList<>();
-        if (edgeIterator != null) {
-            edgeIterator.forEachRemaining(edge ->
-                    vertices.add(vertexToVertex(this, edge, direction)));
+        if (predicates.hasContainers.isEmpty() && predicates.boolContainers.isEmpty()) {
+            Iterator<Edge> edgeIterator = edges(direction, edgeLabels, predicates);
+            ArrayList<Vertex> vertices = new ArrayList<>();
+            if (edgeIterator != null) {
+                edgeIterator.forEachRemaining(edge ->
+                        vertices.add(vertexToVertex(this, edge, direction)));
+            }
+            return vertices.iterator();
+        }
+
+        EdgeQueryInfo queryInfo = new EdgeQueryInfo(direction, edgeLabels, predicates, elasticMutations.getRevision());
+        List<Vertex> vertices = queriedVertices.get(queryInfo);
+        if (vertices != null) return vertices.iterator();
+
+        // test the adjacent vertices of all the siblings in a single ids + predicates query
+        List<BaseVertex> siblingVertices = siblings == null ? Collections.singletonList(this) : siblings;
+        Map<BaseVertex, List<Vertex>> adjacentVertices = new IdentityHashMap<>();
+        Map<Object, Vertex> idToAdjacent = new HashMap<>();
+        Predicates edgePredicates = new Predicates();
+        siblingVertices.forEach(vertex -> {
+            List<Vertex> adjacent = new ArrayList<>();
+            vertex.edges(direction, edgeLabels, edgePredicates).forEachRemaining(edge ->
+                    adjacent.add(vertexToVertex(vertex, edge, direction)));
+            adjacent.forEach(adjacentVertex -> idToAdjacent.putIfAbsent(adjacentVertex.id(), adjacentVertex));
+            adjacentVertices.put(vertex, adjacent);
+        });
+
+        Map<Object, Vertex> passedVertices = new HashMap<>();
+        if (!idToAdjacent.isEmpty()) {
+            QueryHandler queryHandler = graph.getQueryHandler();
+            if (queryHandler instanceof AdjacentHandler) {
+                Predicates adjacentPredicates = new Predicates();
+                adjacentPredicates.hasContainers.addAll(predicates.hasContainers);
+                adjacentPredicates.boolContainers.addAll(predicates.boolContainers);
+                ((AdjacentHandler) queryHandler).vertices(idToAdjacent.keySet(), adjacentPredicates)
+                        .forEachRemaining(vertex -> passedVertices.put(vertex.id(), vertex));
+            }
+            else {
+                // without an ids search, the lazy adjacent vertices are fetched together and tested in memory
+                idToAdjacent.forEach((id, vertex) -> {
+                    if (test(vertex, predicates)) passedVertices.put(id, vertex);
+                });
+            }
         }
-        return vertices.iterator();
+
+        adjacentVertices.forEach((vertex, adjacent) -> vertex.addQueriedVertices(queryInfo, adjacent.stream()
+                .map(adjacentVertex -> passedVertices.get(adjacentVertex.id()))
+                .filter(Objects::nonNull)
+                .limit(predicates.limitHigh)
+                .collect(Collectors.toList())));
+
+        vertices = queriedVertices.get(queryInfo);
+        return vertices != null ? vertices.iterator() : Collections.emptyIterator();
+    }
+
+    /**
+     * Tests a vertex against the has and bool containers of the predicates.
+     * @param vertex the vertex.
+     * @param predicates the predicates.
+     * @return whether the vertex passes all the containers.
+     */
+    private static boolean test(Vertex vertex, Predicates predicates) {
+        for (HasContainer hasContainer : predicates.hasContainers)
+            if (!hasContainer.test(vertex)) return false;
+        for (BoolContainer boolContainer : predicates.boolContainers)
+            if (!boolContainer.test(vertex)) return false;
+        return true;
+    }
+
+    /**
+     * Gets the vertices at the other end of the edges that pass the edge predicates, one per edge, without building the edges.
+     * @param direction the direction of the edge.
+     * @param edgeLabels the label of the edge.
+     * @param edgePredicates the predicates for the edges.
+     * @return iterator of the adjacent vertices.
+     */
+    public Iterator<Vertex> adjacentVertices(Direction direction, String[] edgeLabels, Predicates edgePredicates) {
+        checkRemoved();
+        EdgeQueryInfo queryInfo = new EdgeQueryInfo(direction, edgeLabels, edgePredicates, elasticMutations.getRevision());
+        List<Vertex> vertices = queriedAdjacentVertices.get(queryInfo);
+        if (vertices != null) return vertices.iterator();
+
+        List<BaseVertex> siblingVertices = siblings == null ? Collections.singletonList(this) : siblings;
+        Map<Object, List<Vertex>> adjacentVertices = ((AdjacentHandler) graph.getQueryHandler())
+                .adjacentVertices(siblingVertices.iterator(), direction, edgeLabels, edgePredicates);
+        siblingVertices.forEach(vertex -> vertex.addQueriedAdjacentVertices(queryInfo,
+                adjacentVertices.getOrDefault(vertex.id(), Collections.emptyList())));
+
+        vertices = queriedAdjacentVertices.get(queryInfo);
+        return vertices != null ? vertices.iterator() : Collections.emptyIterator();
     }
 
     /**
@@ -98,15 +192,10 @@ public abstract class BaseVertex extends BaseElement implements Vertex {
         this.siblings = siblings;
     }
 
-    /**
-     * Applies lazy fields.
-     *
-     * @param response
-     */
+    @Override
     public void applyLazyFields(MultiGetItemResponse response) {
         setLabel(response.getType());
-        response.getResponse().getSource().entrySet().forEach((field) ->
-                addPropertyLocal(field.getKey(), field.getValue()));
+        super.applyLazyFields(response);
     }
 
     /**
@@ -209,10 +298,11 @@ public abstract class BaseVertex extends BaseElement implements Vertex {
         Set<Edge> edges = queriedEdges.get(queryInfo);
         if (edges != null)  return edges.iterator();
 
-        List<BaseVertex> vertices = siblings == null ? IteratorUtils.asList(this) : siblings;
+        List<BaseVertex> vertices = siblings == null ? Collections.singletonList(this) : siblings;
 
         Map<Object, Set<Edge>> vertexToEdge = graph.getQueryHandler().edges(vertices.iterator(), direction, edgeLabels, predicates);
-        vertices.forEach( vertex -> vertex.addQueriedEdges(queryInfo, vertexToEdge.get(vertex.id())));
+        // a sibling without edges is cached too, so it doesn't search again once its turn comes
+        vertices.forEach( vertex -> vertex.addQueriedEdges(queryInfo, vertexToEdge.getOrDefault(vertex.id(), Collections.emptySet())));
 
         Set<Edge> thisEdges = vertexToEdge.get(this.id());
         return thisEdges != null ? thisEdges.iterator() : Collections.emptyIterator();
@@ -227,6 +317,24 @@ public abstract class BaseVertex extends BaseElement implements Vertex {
         queriedEdges.put(queryInfo, edges);
     }
 
+    /**
+     * Adds queried adjacent vertices to the queried vertices map.
+     * @param queryInfo as the key.
+     * @param vertices as the value.
+     */
+    private void addQueriedVertices(EdgeQueryInfo queryInfo, List<Vertex> vertices) {
+        queriedVertices.put(queryInfo, vertices);
+    }
+
+    /**
+     * Adds the vertices at the other end of queried edges to the queried adjacent vertices map.
+     * @param queryInfo as the key.
+     * @param vertices as the value.
+     */
+    private void addQueriedAdjacentVertices(EdgeQueryInfo queryInfo, List<Vertex> vertices) {
+        queriedAdjacentVertices.put(queryInfo, vertices);
+    }
+
     ////////////////////////////////////////////////////////////////////////////
     /// Inner classes
 
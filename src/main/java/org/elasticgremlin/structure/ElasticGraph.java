@@ -8,8 +8,10 @@ import org.apache.tinkerpop.gremlin.structure.util.*;
 import org.elasticgremlin.process.optimize.ElasticOptimizationStrategy;
 import org.elasticgremlin.queryhandler.*;
 import org.elasticgremlin.queryhandler.SimpleQueryHandler;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The elasticsearch graph implementing Tinkerpop 3 {@link Graph} interface.
@@ -40,10 +42,6 @@ import java.util.*;
         reason = "https://github.com/rmagen/elastic-gremlin/issues/52")
 @Graph.OptOut(test = "org.apache.tinkerpop.gremlin.structure.GraphConstructionTest", method = "shouldConstructAnEmptyGraph",
         reason = "need to investigate...")
-@Graph.OptOut(test = "org.apache.tinkerpop.gremlin.process.traversal.step.map.CountTest", method = "g_V_repeatXoutX_timesX3X_count",
-        reason = "Takes too long.")
-@Graph.OptOut(test = "org.apache.tinkerpop.gremlin.process.traversal.step.map.CountTest", method = "g_V_repeatXoutX_timesX8X_count",
-        reason = "OutOfMemory exception")
 @Graph.OptOut(test = "org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.SubgraphTest$Traversals", method = "g_V_withSideEffectXsgX_repeatXbothEXcreatedX_subgraphXsgX_outVX_timesX5X_name_dedup",
         reason = "need to investigate...")
 @Graph.OptOut(test = "org.apache.tinkerpop.gremlin.process.traversal.step.sideEffect.SubgraphTest$Traversals", method = "g_V_withSideEffectXsgX_outEXknowsX_subgraphXsgX_name_capXsgX",
@@ -134,6 +132,13 @@ public class ElasticGraph implements Graph {
      */
     public void commit() { queryHandler.commit(); }
 
+    /**
+     * Commits the graph changes without waiting for them.
+     *
+     * @return the responses of the items of the bulks sent since the last commit, in the order they were added.
+     */
+    public CompletableFuture<List<BulkItemResponse>> commitAsync() { return queryHandler.commitAsync(); }
+
     @Override
     public Configuration configuration() {
         return this.configuration;
@@ -0,0 +1,286 @@
+package org.elasticgremlin.elastic;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.tinkerpop.gremlin.LoadGraphWith;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.ElasticGraphGraphProvider;
+import org.elasticgremlin.queryhandler.SimpleQueryHandler;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.*;
+import org.elasticgremlin.structure.ElasticGraph;
+import org.elasticsearch.action.*;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class BulkTests {
+
+    ElasticGraph graph;
+    Client client;
+    Vertex vertex;
+
+    @Before
+    public void startUp() throws InstantiationException, IOException, ExecutionException, InterruptedException {
+        ElasticGraphGraphProvider elasticGraphProvider = new ElasticGraphGraphProvider();
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "bulkTests", LoadGraphWith.GraphData.MODERN);
+        configuration.setProperty("elasticsearch.bulk", true);
+        this.graph = (ElasticGraph) elasticGraphProvider.openTestGraph(configuration);
+        this.client = elasticGraphProvider.getClient();
+        this.vertex = graph.addVertex(T.label, "test", T.id, "1", "name", "marko");
+        graph.commit();
+    }
+
+    @Test
+    public void actionsThresholdTest() {
+        BulkClient bulkClient = new BulkClient(client);
+        ElasticMutations mutations = new ElasticMutations(true, 3, 0, 0, 1, 0, 1, bulkClient, new TimingAccessor());
+        for (int i = 0; i < 7; i++) mutations.addElement(vertex, "testgraph", null, false);
+        assertEquals(Arrays.asList(3, 3), bulkClient.sizes());
+
+        mutations.commit();
+        assertEquals(Arrays.asList(3, 3, 1), bulkClient.sizes());
+        mutations.close();
+    }
+
+    @Test
+    public void sizeThresholdTest() {
+        BulkClient bulkClient = new BulkClient(client);
+        ElasticMutations mutations = new ElasticMutations(true, 0, 1, 0, 1, 0, 1, bulkClient, new TimingAccessor());
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.addElement(vertex, "testgraph", null, false);
+        // every action is larger than the size threshold on its own
+        assertEquals(Arrays.asList(1, 1), bulkClient.sizes());
+        mutations.close();
+
+        bulkClient = new BulkClient(client);
+        mutations = new ElasticMutations(true, 0, 1024 * 1024, 0, 1, 0, 1, bulkClient, new TimingAccessor());
+        for (int i = 0; i < 10; i++) mutations.addElement(vertex, "testgraph", null, false);
+        assertTrue(bulkClient.sizes().isEmpty());
+        mutations.commit();
+        assertEquals(Collections.singletonList(10), bulkClient.sizes());
+        mutations.close();
+    }
+
+    @Test
+    public void intervalThresholdTest() throws InterruptedException {
+        BulkClient bulkClient = new BulkClient(client);
+        ElasticMutations mutations = new ElasticMutations(true, 0, 0, 50, 1, 0, 1, bulkClient, new TimingAccessor());
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.addElement(vertex, "testgraph", null, false);
+        // the bulk is sent off without a commit, once its first action is older than the interval
+        for (int i = 0; i < 50 && bulkClient.sizes().isEmpty(); i++) Thread.sleep(20);
+        assertEquals(Collections.singletonList(2), bulkClient.sizes());
+        mutations.close();
+    }
+
+    @Test
+    public void closeTest() {
+        BulkClient bulkClient = new BulkClient(client);
+        ElasticMutations mutations = new ElasticMutations(true, 0, 0, 0, 1, 0, 1, bulkClient, new TimingAccessor());
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.close();
+        assertEquals(Collections.singletonList(1), bulkClient.sizes());
+        assertEquals(0, mutations.getBacklog());
+    }
+
+    @Test
+    public void commitAsyncTest() throws InterruptedException, ExecutionException, TimeoutException {
+        for (int i = 2; i <= 6; i++) graph.addVertex(T.label, "test", T.id, String.valueOf(i), "n", i);
+        CompletableFuture<List<BulkItemResponse>> future = graph.commitAsync();
+        // the next mutations fill the next bulk meanwhile
+        graph.addVertex(T.label, "test", T.id, "7", "n", 7);
+
+        List<BulkItemResponse> items = future.get(10, TimeUnit.SECONDS);
+        assertEquals(5, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertFalse(items.get(i).isFailed());
+            assertEquals(String.valueOf(i + 2), items.get(i).getId());
+        }
+        assertEquals(6L, (long) graph.traversal().V().count().next());
+
+        assertEquals(1, graph.commitAsync().get(10, TimeUnit.SECONDS).size());
+        assertEquals(7L, (long) graph.traversal().V().count().next());
+        assertTrue(graph.commitAsync().get(10, TimeUnit.SECONDS).isEmpty());
+        ElasticMutations mutations = ((SimpleQueryHandler) graph.getQueryHandler()).getElasticMutations();
+        assertEquals(0, mutations.getBacklog());
+        assertEquals(0, mutations.getDeadLetterCount());
+    }
+
+    @Test
+    public void itemRetryTest() throws InterruptedException, ExecutionException, TimeoutException {
+        RejectingClient rejectingClient = new RejectingClient(client, 2);
+        ElasticMutations mutations = new ElasticMutations(true, 0, 0, 0, 1, 3, 1, rejectingClient, new TimingAccessor());
+        for (int i = 0; i < 3; i++) mutations.addElement(vertex, "testgraph", null, false);
+
+        List<BulkItemResponse> items = mutations.commitAsync().get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(3, 3, 3), rejectingClient.sizes());
+        assertEquals(3, items.size());
+        items.forEach(item -> assertFalse(item.isFailed()));
+        assertEquals(6, mutations.getRejectionCount());
+        assertEquals(6, mutations.getRetryCount());
+        assertEquals(0, mutations.getDeadLetterCount());
+        assertEquals(0, mutations.getBacklog());
+        mutations.close();
+    }
+
+    @Test
+    public void itemExhaustionTest() {
+        RejectingClient rejectingClient = new RejectingClient(client, Integer.MAX_VALUE);
+        ElasticMutations mutations = new ElasticMutations(true, 0, 0, 0, 1, 2, 1, rejectingClient, new TimingAccessor());
+        List<BulkItemResponse> deadLetters = Collections.synchronizedList(new ArrayList<>());
+        mutations.setDeadLetterHandler((action, item) -> deadLetters.add(item));
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.addElement(vertex, "testgraph", null, false);
+
+        mutations.commit();
+        assertEquals(Arrays.asList(2, 2, 2), rejectingClient.sizes());
+        assertEquals(2, deadLetters.size());
+        deadLetters.forEach(item -> assertEquals(RestStatus.TOO_MANY_REQUESTS, item.getFailure().getStatus()));
+        assertEquals(6, mutations.getRejectionCount());
+        assertEquals(4, mutations.getRetryCount());
+        assertEquals(2, mutations.getDeadLetterCount());
+        mutations.close();
+    }
+
+    @Test
+    public void bulkRejectionTest() {
+        // rejected as a whole once, then succeeds
+        RejectingClient rejectingClient = new RejectingClient(client, 0, new EsRejectedExecutionException("rejected"));
+        ElasticMutations mutations = new ElasticMutations(true, 0, 0, 0, 1, 2, 1, rejectingClient, new TimingAccessor());
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.commit();
+        assertEquals(Arrays.asList(2, 2), rejectingClient.sizes());
+        assertEquals(2, mutations.getRetryCount());
+        assertEquals(0, mutations.getDeadLetterCount());
+        mutations.close();
+
+        // rejected as a whole more times than the retries
+        rejectingClient = new RejectingClient(client, 0, new EsRejectedExecutionException("rejected"),
+                new EsRejectedExecutionException("rejected"), new EsRejectedExecutionException("rejected"));
+        mutations = new ElasticMutations(true, 0, 0, 0, 1, 2, 1, rejectingClient, new TimingAccessor());
+        Map<ActionRequest<?>, BulkItemResponse> deadLetters = new ConcurrentHashMap<>();
+        mutations.setDeadLetterHandler(deadLetters::put);
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.deleteElement(vertex, "testgraph", null);
+        mutations.commit();
+        assertEquals(Arrays.asList(2, 2, 2), rejectingClient.sizes());
+        assertEquals(2, deadLetters.size());
+        deadLetters.forEach((action, item) -> {
+            assertEquals(RestStatus.TOO_MANY_REQUESTS, item.getFailure().getStatus());
+            assertEquals(action instanceof IndexRequest ? "index" : "delete", item.getOpType());
+            assertEquals("1", item.getId());
+        });
+        assertEquals(2, mutations.getDeadLetterCount());
+        assertEquals(0, mutations.getBacklog());
+        mutations.close();
+    }
+
+    @Test
+    public void transportFailureTest() {
+        RejectingClient rejectingClient = new RejectingClient(client, 0, new NoNodeAvailableException("down"));
+        ElasticMutations mutations = new ElasticMutations(true, 0, 0, 0, 1, 2, 1, rejectingClient, new TimingAccessor());
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.addElement(vertex, "testgraph", null, false);
+        // a failure other than a rejection isn't retried, and fails the commit without a dead letter handler
+        try {
+            mutations.commit();
+            fail("the commit should fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof NoNodeAvailableException);
+        }
+        assertEquals(Collections.singletonList(2), rejectingClient.sizes());
+        assertEquals(0, mutations.getRetryCount());
+        assertEquals(2, mutations.getDeadLetterCount());
+        assertEquals(0, mutations.getBacklog());
+
+        // the next commit only covers the bulks sent since
+        mutations.addElement(vertex, "testgraph", null, false);
+        mutations.commit();
+        assertEquals(Arrays.asList(2, 1), rejectingClient.sizes());
+        mutations.close();
+    }
+
+    /**
+     * Records the number of actions of the bulk requests it sends.
+     */
+    static class BulkClient extends FilterClient {
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+
+        BulkClient(Client in) {
+            super(in);
+        }
+
+        List<Integer> sizes() {
+            return new ArrayList<>(sizes);
+        }
+
+        @Override
+        protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+            if (request instanceof BulkRequest) sizes.add(((BulkRequest) request).numberOfActions());
+            super.doExecute(action, request, listener);
+        }
+    }
+
+    /**
+     * Answers bulk requests without sending them: fails the first ones as a whole with the given failures,
+     * then rejects every item of the given number of requests, like a full bulk queue, then indexes every item.
+     */
+    static class RejectingClient extends BulkClient {
+        private final Deque<Throwable> failures;
+        private int rejections;
+
+        RejectingClient(Client in, int rejections, Throwable... failures) {
+            super(in);
+            this.rejections = rejections;
+            this.failures = new ArrayDeque<>(Arrays.asList(failures));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+            if (!(request instanceof BulkRequest)) {
+                super.doExecute(action, request, listener);
+                return;
+            }
+            List<ActionRequest> requests = ((BulkRequest) request).requests();
+            sizes.add(requests.size());
+            Throwable failure;
+            boolean reject;
+            synchronized (this) {
+                failure = failures.poll();
+                reject = failure == null && rejections > 0;
+                if (reject) rejections--;
+            }
+            if (failure != null) {
+                listener.onFailure(failure);
+                return;
+            }
+            BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+            for (int i = 0; i < items.length; i++) {
+                IndexRequest indexRequest = (IndexRequest) requests.get(i);
+                items[i] = reject ?
+                        new BulkItemResponse(i, "index", new BulkItemResponse.Failure(indexRequest.index(),
+                                indexRequest.type(), indexRequest.id(), new EsRejectedExecutionException("rejected"))) :
+                        new BulkItemResponse(i, "index", new IndexResponse(indexRequest.index(),
+                                indexRequest.type(), indexRequest.id(), 1, false));
+            }
+            listener.onResponse((Response) new BulkResponse(items, 0));
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.elasticgremlin.elastic;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.tinkerpop.gremlin.LoadGraphWith;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.Step;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.DefaultGraphTraversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.__;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalMetrics;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.ElasticGraphGraphProvider;
+import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticMetrics;
+import org.elasticgremlin.starQueryHandler.*;
+import org.elasticgremlin.structure.ElasticGraph;
+import org.elasticsearch.client.Client;
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class OptimizationStrategyTests {
+
+    Graph graph;
+    GraphTraversalSource g;
+    Client client;
+
+    @Before
+    public void startUp() throws InstantiationException, IOException, ExecutionException, InterruptedException {
+        ElasticGraphGraphProvider elasticGraphProvider = new ElasticGraphGraphProvider();
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "optimizationTests", LoadGraphWith.GraphData.MODERN);
+        // small batches, so the vertex and repeat steps go over their inputs in several chunks
+        configuration.setProperty("elasticsearch.vertexStep.batchSize", 2);
+        this.graph = elasticGraphProvider.openTestGraph(configuration);
+        this.g = graph.traversal();
+        this.client = elasticGraphProvider.getClient();
+
+        Vertex marko = graph.addVertex(T.label, "person", T.id, "1", "name", "marko", "age", 29);
+        Vertex vadas = graph.addVertex(T.label, "person", T.id, "2", "name", "vadas", "age", 27);
+        Vertex josh = graph.addVertex(T.label, "person", T.id, "3", "name", "josh", "age", 32);
+        Vertex lop = graph.addVertex(T.label, "software", T.id, "4", "name", "lop", "lang", "java");
+        Vertex ripple = graph.addVertex(T.label, "software", T.id, "5", "name", "ripple", "lang", "java");
+        marko.addEdge("knows", vadas, T.id, "7", "weight", 0.5);
+        marko.addEdge("knows", josh, T.id, "8", "weight", 1.0);
+        marko.addEdge("created", lop, T.id, "9", "weight", 0.4);
+        josh.addEdge("created", ripple, T.id, "10", "weight", 1.0);
+        josh.addEdge("created", lop, T.id, "11", "weight", 0.4);
+    }
+
+    @Test
+    public void countByLabelTest() {
+        assertEquals(3L, (long) g.V().hasLabel("person").count().next());
+        assertEquals(5L, (long) g.V().hasLabel("person", "software").count().next());
+        assertEquals(3L, (long) g.E().hasLabel("created").count().next());
+        assertEquals(0L, (long) g.V().hasLabel("nothing").count().next());
+        assertEquals(1L, (long) g.V().hasLabel("person").has("age", 29).count().next());
+        assertTrue(pushedDown(g.V().hasLabel("person").count(), "ElasticCountStep"));
+    }
+
+    @Test
+    public void countWithStepLabelsTest() {
+        assertEquals(3L, (long) g.V().hasLabel("person").as("p").count().next());
+        assertEquals(5L, (long) g.V().as("v").count().next());
+        assertFalse(pushedDown(g.V().hasLabel("person").as("p").count(), "ElasticCountStep"));
+    }
+
+    @Test
+    public void groupCountKeyTypesTest() {
+        graph.addVertex(T.label, "counter", T.id, "20", "big", 5000000000L, "flag", true);
+        graph.addVertex(T.label, "counter", T.id, "21", "big", 5000000000L, "flag", false);
+
+        Map<Object, Long> ages = g.V().hasLabel("person").<Object>groupCount().by("age").next();
+        assertEquals(new HashMap<Object, Long>() {{ put(29, 1L); put(27, 1L); put(32, 1L); }}, ages);
+        Map<Object, Long> weights = g.E().<Object>groupCount().by("weight").next();
+        assertEquals(new HashMap<Object, Long>() {{ put(0.5, 1L); put(1.0, 2L); put(0.4, 2L); }}, weights);
+        assertEquals(Collections.singletonMap(5000000000L, 2L), g.V().hasLabel("counter").<Object>groupCount().by("big").next());
+        Map<Object, Long> flags = g.V().hasLabel("counter").<Object>groupCount().by("flag").next();
+        assertEquals(new HashMap<Object, Long>() {{ put(true, 1L); put(false, 1L); }}, flags);
+        Map<Object, Long> labels = g.V().<Object>groupCount().by(T.label).next();
+        assertEquals(new HashMap<Object, Long>() {{ put("person", 3L); put("software", 2L); put("counter", 2L); }}, labels);
+        assertTrue(pushedDown(g.V().hasLabel("person").groupCount().by("age"), "ElasticGroupCountStep"));
+    }
+
+    @Test
+    public void adjacentPredicatesTest() {
+        assertEquals("josh", g.V("1").out().has("age", P.between(28, 33)).values("name").next());
+        assertEquals(2L, (long) g.V("1").out().has("age", P.outside(28, 30)).count().next());
+        assertEquals(1L, (long) g.V("1").out().has("age", P.lt(30).or(P.gt(40))).count().next());
+        assertEquals(1L, (long) g.V("1").out().has("age", P.gt(28)).has("age", P.between(30, 40)).count().next());
+        assertTrue(pushedDown(g.V("1").out().has("age", P.outside(28, 30)), "HasStep"));
+        assertTrue(pushedDown(g.V("1").out().has("age", P.gt(28)).has("age", P.outside(28, 30)), "HasStep"));
+
+        assertEquals("josh", g.V("1").out().has("age", P.gt(28)).values("name").next());
+        assertEquals(2L, (long) g.V("1").out().has("age", P.within(27, 32)).count().next());
+        assertEquals(2L, (long) g.V("1").out().hasLabel("person").count().next());
+        assertFalse(pushedDown(g.V("1").out().has("age", P.gt(28)), "HasStep"));
+    }
+
+    @Test
+    public void adjacentPredicatesWithoutIdsSearchTest() throws Exception {
+        ModernGraphGraphProvider modernGraphProvider = new ModernGraphGraphProvider();
+        final Configuration configuration = modernGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "adjacentWithoutIdsSearchTests", LoadGraphWith.GraphData.MODERN);
+        configuration.setProperty("queryHandler", UnsearchableQueryHandler.class.getName());
+        Graph modernGraph = modernGraphProvider.openTestGraph(configuration);
+        Vertex marko = modernGraph.addVertex(T.label, "person", T.id, "1", "name", "marko", "age", 29);
+        Vertex vadas = modernGraph.addVertex(T.label, "person", T.id, "2", "name", "vadas", "age", 27);
+        Vertex josh = modernGraph.addVertex(T.label, "person", T.id, "3", "name", "josh", "age", 32);
+        Vertex lop = modernGraph.addVertex(T.label, "software", T.id, "4", "name", "lop", "lang", "java");
+        marko.addEdge("knows", vadas, T.id, "7", "weight", 0.5);
+        marko.addEdge("knows", josh, T.id, "8", "weight", 1.0);
+        marko.addEdge("created", lop, T.id, "9", "weight", 0.4);
+
+        // the handler can't search, so the adjacent vertices are tested in memory
+        assertEquals(Collections.singletonList("josh"), start(modernGraph, marko).out("knows").has("age", P.gt(28)).values("name").toList());
+        assertEquals(1L, (long) start(modernGraph, marko).out("created").has("lang", "java").count().next());
+        assertEquals(0L, (long) start(modernGraph, marko).out("knows").hasLabel("software").count().next());
+        assertFalse(pushedDown(start(modernGraph, marko).out("knows").has("age", P.gt(28)), "HasStep"));
+        modernGraph.close();
+    }
+
+    @Test
+    public void edgeVertexFusionTest() {
+        // a step label keeps the edges around, so the labeled traversal isn't fused
+        assertEquals(names(g.V().outE("created").as("e").has("weight", 0.4).inV()), names(g.V().outE("created").has("weight", 0.4).inV()));
+        assertEquals(Arrays.asList("lop", "lop"), names(g.V().outE("created").has("weight", 0.4).inV()));
+        assertEquals(names(g.V().inE("knows").as("e").has("weight", P.gt(0.6)).outV()), names(g.V().inE("knows").has("weight", P.gt(0.6)).outV()));
+        assertEquals(Collections.singletonList("marko"), names(g.V().inE("knows").has("weight", P.gt(0.6)).outV()));
+        assertEquals(names(g.V().outE().as("e").inV()), names(g.V().outE().inV()));
+        assertEquals(Collections.emptyList(), names(g.V().outE("created").has("weight", P.gt(2)).inV()));
+
+        assertFalse(pushedDown(g.V().outE("created").has("weight", 0.4).inV(), "EdgeVertexStep"));
+        assertFalse(pushedDown(g.V().inE("knows").has("weight", P.gt(0.6)).outV(), "EdgeVertexStep"));
+        assertTrue(pushedDown(g.V().outE("created").as("e").has("weight", 0.4).inV(), "EdgeVertexStep"));
+        assertTrue(pushedDown(g.V().outE("created").inV().path(), "EdgeVertexStep"));
+    }
+
+    private List<Object> names(GraphTraversal<?, Vertex> traversal) {
+        return traversal.values("name").toList().stream().sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void batchedSiblingsTest() {
+        // vertices that weren't fetched together are batched by twos, one edge search per batch
+        assertEquals(g.V().out().count().next(), start(graph, unrelatedVertices()).out().count().next());
+        assertEquals(new HashSet<>(g.V().in().id().toList()), new HashSet<>(start(graph, unrelatedVertices()).in().id().toList()));
+        assertEquals(new HashSet<>(Arrays.asList("vadas", "josh", "lop")),
+                new HashSet<>(start(graph, graph.vertices(1).next()).out().<String>values("name").toList()));
+        assertEquals(3L, searches(start(graph, unrelatedVertices()).outE(), 1));
+        assertEquals(3L, searches(start(graph, unrelatedVertices()).inE("created"), 1));
+    }
+
+    private Vertex[] unrelatedVertices() {
+        // each vertex is fetched on its own, so none of them has siblings
+        return g.V().id().toList().stream().map(id -> {
+            Vertex vertex = graph.vertices(id).next();
+            vertex.label();
+            return vertex;
+        }).toArray(Vertex[]::new);
+    }
+
+    @Test
+    public void sourceIncludesTest() {
+        assertEquals(new HashSet<>(Arrays.asList("marko", "vadas", "josh", "lop", "ripple")), new HashSet<>(g.V().values("name").toList()));
+        assertEquals(Collections.singletonMap("name", Collections.singletonList("marko")), g.V().has("age", 29).valueMap("name").next());
+        assertEquals(Arrays.asList(0.4, 0.4, 1.0), g.E().hasLabel("created").<Double>values("weight").toList().stream().sorted().collect(Collectors.toList()));
+        assertTrue(sourceBytes(g.V().values("name")) < sourceBytes(g.V()));
+
+        // the projected vertex holds only its name, the age is read from the index when it's asked for
+        Predicates predicates = new Predicates();
+        predicates.hasContainers.add(new HasContainer("name", P.eq("marko")));
+        Vertex whole = ((ElasticGraph) graph).getQueryHandler().vertices(predicates).next();
+        predicates.includes.add("name");
+        Vertex projected = ((ElasticGraph) graph).getQueryHandler().vertices(predicates).next();
+        client.prepareUpdate("testgraph", "person", "1").setDoc("age", 30).setRefresh(true).get();
+        assertEquals("marko", projected.value("name"));
+        assertEquals(30, (int) projected.value("age"));
+        assertEquals(29, (int) whole.value("age"));
+    }
+
+    @Test
+    public void repeatTest() {
+        assertEquals(5L, (long) g.V().repeat(__.out()).times(1).count().next());
+        assertEquals(2L, (long) g.V().repeat(__.out()).times(2).count().next());
+        assertEquals(0L, (long) g.V().repeat(__.out()).times(3).count().next());
+        assertEquals(4L, (long) g.V().repeat(__.out()).times(1).dedup().count().next());
+        assertEquals(5L, (long) g.V().repeat(__.both()).times(2).dedup().count().next());
+        assertEquals((long) g.V().both().both().count().next(), (long) g.V().repeat(__.both()).times(2).count().next());
+        assertEquals(new HashSet<>(Arrays.asList("ripple", "lop")), new HashSet<>(g.V().repeat(__.out()).times(2).values("name").toList()));
+        assertTrue(pushedDown(g.V().repeat(__.out()).times(2), "ElasticRepeatStep"));
+        assertFalse(pushedDown(g.V().repeat(__.out()).times(2).path(), "ElasticRepeatStep"));
+        assertEquals(5L, (long) g.V().repeat(__.out()).times(0).count().next());
+        assertFalse(pushedDown(g.V().repeat(__.out()).times(0), "ElasticRepeatStep"));
+    }
+
+    @Test
+    public void repeatInChildTraversalTest() {
+        // each start of the union is expanded on its own
+        assertEquals(g.V().union(__.out().out(), __.out()).id().toList().stream().sorted().collect(Collectors.toList()),
+                g.V().union(__.repeat(__.out()).times(2), __.out()).id().toList().stream().sorted().collect(Collectors.toList()));
+        assertEquals(7L, (long) g.V().hasLabel("person").union(__.repeat(__.out()).times(2), __.out()).count().next());
+        assertEquals(new HashSet<>(Arrays.asList("ripple", "lop", "marko")), new HashSet<>(g.V().hasLabel("person")
+                .choose(__.has("age", P.gt(28)), __.repeat(__.out()).times(2), __.in()).values("name").toList()));
+        assertTrue(pushedDown(g.V().union(__.repeat(__.out()).times(2), __.out()), "ElasticRepeatStep"));
+    }
+
+    @Test
+    public void repeatLateStartsTest() {
+        // starts added after the results were emitted are expanded too
+        Traversal.Admin<Vertex, Object> traversal = new DefaultGraphTraversal<Vertex, Vertex>(graph)
+                .repeat(__.out()).times(2).values("name").asAdmin();
+        Vertex marko = graph.vertices("1").next();
+        traversal.addStart(traversal.getTraverserGenerator().generate(marko, (Step) traversal.getStartStep(), 1L));
+        assertEquals(new HashSet<>(Arrays.asList("ripple", "lop")), new HashSet<>(traversal.toList()));
+        traversal.addStart(traversal.getTraverserGenerator().generate(marko, (Step) traversal.getStartStep(), 1L));
+        assertEquals(new HashSet<>(Arrays.asList("ripple", "lop")), new HashSet<>(traversal.toList()));
+        assertTrue(traversal.toString().contains("ElasticRepeatStep"));
+    }
+
+    @Test
+    public void valueStatisticsTest() {
+        assertEquals(88.0, g.V().hasLabel("person").values("age").sum().next().doubleValue(), 0.001);
+        assertEquals(88.0 / 3, g.V().hasLabel("person").values("age").mean().next().doubleValue(), 0.001);
+        assertEquals(27, g.V().hasLabel("person").values("age").min().next().intValue());
+        assertEquals(32, g.V().values("age").max().next().intValue());
+        assertTrue(pushedDown(g.V().hasLabel("person").values("age").sum(), "ElasticStatsStep"));
+        assertTrue(pushedDown(g.V().values("age").mean(), "ElasticStatsStep"));
+
+        // a step label keeps the values in memory, and both ways give the same results, on a key no index maps too
+        for (String key : Arrays.asList("age", "weight", "unmapped")) {
+            assertEquals(g.V().values(key).as("x").sum().toList(), g.V().values(key).sum().toList());
+            assertEquals(g.V().values(key).as("x").mean().toList(), g.V().values(key).mean().toList());
+            assertEquals(g.V().values(key).as("x").min().toList(), g.V().values(key).min().toList());
+            assertEquals(g.V().values(key).as("x").max().toList(), g.V().values(key).max().toList());
+        }
+        assertFalse(pushedDown(g.V().values("age").as("x").sum(), "ElasticStatsStep"));
+    }
+
+    /**
+     * A handler that can't search its vertices, like one of virtual vertices.
+     */
+    public static class UnsearchableQueryHandler extends ModernGraphQueryHandler {
+        @Override
+        public Iterator<? extends Vertex> vertices(Predicates predicates) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private GraphTraversal<Vertex, Vertex> start(Graph graph, Vertex... vertices) {
+        // the traversal starts from the vertices themselves, not from a search that makes them siblings
+        return new DefaultGraphTraversal<Vertex, Vertex>(graph).inject(vertices);
+    }
+
+    private long sourceBytes(GraphTraversal<?, ?> traversal) {
+        return count(traversal, 0, ElasticMetrics.SOURCE_BYTES);
+    }
+
+    private long searches(GraphTraversal<?, ?> traversal, int stepIndex) {
+        return count(traversal, stepIndex, ElasticMetrics.SEARCHES);
+    }
+
+    private long count(GraphTraversal<?, ?> traversal, int stepIndex, String key) {
+        TraversalMetrics metrics = (TraversalMetrics) traversal.profile().cap(TraversalMetrics.METRICS_KEY).next();
+        Long count = metrics.getMetrics(stepIndex).getCount(key);
+        return count != null ? count : 0;
+    }
+
+    private boolean pushedDown(Traversal<?, ?> traversal, String stepName) {
+        traversal.hasNext();
+        return traversal.toString().contains(stepName);
+    }
+}
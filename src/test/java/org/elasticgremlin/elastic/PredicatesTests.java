@@ -0,0 +1,94 @@
+package org.elasticgremlin.elastic;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.elasticgremlin.queryhandler.BoolContainer;
+import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.ElasticHelper;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.QueryCache;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PredicatesTests {
+
+    @Test
+    public void boolContainerEqualityTest() {
+        assertEquals(boolContainer("age", P.gt(28)), boolContainer("age", P.gt(28)));
+        assertEquals(boolContainer("age", P.gt(28)).hashCode(), boolContainer("age", P.gt(28)).hashCode());
+        assertNotEquals(boolContainer("age", P.gt(28)), boolContainer("age", P.gt(29)));
+        assertNotEquals(boolContainer("age", P.gt(28)), boolContainer("age", P.lt(28)));
+        assertNotEquals(boolContainer("age", P.gt(28)), boolContainer("weight", P.gt(28)));
+
+        BoolContainer parent = new BoolContainer(BoolContainer.Type.NOT);
+        parent.children.add(boolContainer("age", P.gt(28)));
+        BoolContainer other = new BoolContainer(BoolContainer.Type.NOT);
+        other.children.add(boolContainer("age", P.gt(28)));
+        assertEquals(parent, other);
+        assertEquals(parent.hashCode(), other.hashCode());
+    }
+
+    @Test
+    public void predicatesEqualityTest() {
+        Predicates predicates = new Predicates();
+        predicates.hasContainers.add(new HasContainer("name", P.eq("marko")));
+        predicates.boolContainers.add(boolContainer("age", P.gt(28)));
+        Predicates other = new Predicates();
+        other.hasContainers.add(new HasContainer("name", P.eq("marko")));
+        other.boolContainers.add(boolContainer("age", P.gt(28)));
+        assertEquals(predicates, other);
+        assertEquals(predicates.hashCode(), other.hashCode());
+
+        other.boolContainers.get(0).hasContainers.set(0, new HasContainer("age", P.gte(28)));
+        assertNotEquals(predicates, other);
+    }
+
+    @Test
+    public void expectedHitsTest() {
+        assertEquals(1L, ElasticHelper.getExpectedHits(idPredicates(new HasContainer(T.id.getAccessor(), P.eq("1")))));
+        assertEquals(3L, ElasticHelper.getExpectedHits(idPredicates(new HasContainer(T.id.getAccessor(), P.within("1", "2", "3")))));
+        assertEquals(2L, ElasticHelper.getExpectedHits(idPredicates(new HasContainer(T.id.getAccessor(), P.within(Arrays.asList("1", "2"))))));
+        assertEquals(3L, ElasticHelper.getExpectedHits(idPredicates(new HasContainer(T.id.getAccessor(), new P(Contains.within, new int[]{1, 2, 3})))));
+        assertEquals(Long.MAX_VALUE, ElasticHelper.getExpectedHits(idPredicates(new HasContainer(T.id.getAccessor(), new P(Contains.within, null)))));
+        assertEquals(Long.MAX_VALUE, ElasticHelper.getExpectedHits(idPredicates(new HasContainer("name", P.eq("marko")))));
+    }
+
+    @Test
+    public void filterMemoizationTest() {
+        QueryCache queryCache = new QueryCache(0, 0, 0, null);
+        QueryCache otherQueryCache = new QueryCache(0, 0, 0, null);
+        Predicates predicates = idPredicates(new HasContainer("name", P.eq("marko")));
+        predicates.limitHigh = 10;
+        Predicates samePredicates = idPredicates(new HasContainer("name", P.eq("marko")));
+
+        String filter = ElasticHelper.createFilterBuilder(predicates, queryCache).toString();
+        assertEquals(filter, ElasticHelper.createFilterBuilder(samePredicates, queryCache).toString());
+        assertNotEquals(filter, ElasticHelper.createFilterBuilder(idPredicates(new HasContainer("name", P.eq("josh"))), queryCache).toString());
+
+        // the filters are memoized per graph
+        List<Predicates> created = new ArrayList<>();
+        QueryBuilder memoized = queryCache.getFilter(samePredicates, key -> { created.add(key); return QueryBuilders.matchAllQuery(); });
+        assertTrue(created.isEmpty());
+        assertEquals(filter, QueryBuilders.boolQuery().filter(memoized).toString());
+        otherQueryCache.getFilter(samePredicates, key -> { created.add(key); return QueryBuilders.matchAllQuery(); });
+        assertEquals(1, created.size());
+    }
+
+    private Predicates idPredicates(HasContainer hasContainer) {
+        Predicates predicates = new Predicates();
+        predicates.hasContainers.add(hasContainer);
+        return predicates;
+    }
+
+    private BoolContainer boolContainer(String key, P<?> predicate) {
+        BoolContainer boolContainer = new BoolContainer(BoolContainer.Type.OR);
+        boolContainer.hasContainers.add(new HasContainer(key, predicate));
+        return boolContainer;
+    }
+}
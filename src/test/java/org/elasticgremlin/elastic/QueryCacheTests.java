@@ -0,0 +1,136 @@
+package org.elasticgremlin.elastic;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.tinkerpop.gremlin.LoadGraphWith;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.ElasticGraphGraphProvider;
+import org.elasticgremlin.queryhandler.SimpleQueryHandler;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.QueryCache;
+import org.elasticgremlin.structure.ElasticGraph;
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class QueryCacheTests {
+
+    ElasticGraph graph;
+    GraphTraversalSource g;
+    QueryCache queryCache;
+
+    @Before
+    public void startUp() throws InstantiationException, IOException, ExecutionException, InterruptedException {
+        ElasticGraphGraphProvider elasticGraphProvider = new ElasticGraphGraphProvider();
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "queryCacheTests", LoadGraphWith.GraphData.MODERN);
+        configuration.setProperty("elasticsearch.queryCache.size", 2);
+        configuration.setProperty("elasticsearch.queryCache.ttl", "500ms");
+        this.graph = (ElasticGraph) elasticGraphProvider.openTestGraph(configuration);
+        this.g = graph.traversal();
+        this.queryCache = ((SimpleQueryHandler) graph.getQueryHandler()).getQueryCache();
+
+        graph.addVertex(T.label, "person", T.id, "1", "name", "marko", "age", 29);
+        graph.addVertex(T.label, "person", T.id, "2", "name", "vadas", "age", 27);
+        graph.addVertex(T.label, "person", T.id, "3", "name", "josh", "age", 32);
+    }
+
+    @Test
+    public void revisionTest() {
+        assertEquals(1, g.V().has("name", "marko").toList().size());
+        assertEquals(1, g.V().has("name", "marko").toList().size());
+        assertEquals(1, queryCache.getHitCount());
+
+        // any write drops the entries
+        graph.addVertex(T.label, "person", T.id, "4", "name", "marko", "age", 40);
+        assertEquals(2, g.V().has("name", "marko").toList().size());
+        assertEquals(1, queryCache.getHitCount());
+        assertEquals(2, queryCache.getMissCount());
+    }
+
+    @Test
+    public void bulkRevisionTest() throws InstantiationException, IOException, ExecutionException, InterruptedException {
+        ElasticGraphGraphProvider elasticGraphProvider = new ElasticGraphGraphProvider();
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "queryCacheBulkTests", LoadGraphWith.GraphData.MODERN);
+        configuration.setProperty("elasticsearch.queryCache.size", 2);
+        configuration.setProperty("elasticsearch.bulk", true);
+        ElasticGraph bulkGraph = (ElasticGraph) elasticGraphProvider.openTestGraph(configuration);
+        QueryCache bulkCache = ((SimpleQueryHandler) bulkGraph.getQueryHandler()).getQueryCache();
+
+        // the pending write isn't searchable yet, so the miss is cached
+        bulkGraph.addVertex(T.label, "item", T.id, "10", "sku", "x");
+        assertEquals(0, bulkGraph.traversal().V().has("sku", "x").toList().size());
+        assertEquals(0, bulkGraph.traversal().V().has("sku", "x").toList().size());
+        assertEquals(1, bulkCache.getHitCount());
+
+        // the completed bulk drops it
+        bulkGraph.commit();
+        assertEquals(1, bulkGraph.traversal().V().has("sku", "x").toList().size());
+        assertEquals(1, bulkCache.getHitCount());
+        assertEquals(2, bulkCache.getMissCount());
+        bulkGraph.close();
+    }
+
+    @Test
+    public void adjacentVerticesTest() {
+        Vertex marko = g.V("1").next();
+        marko.addEdge("knows", g.V("2").next());
+        marko.addEdge("knows", g.V("3").next());
+
+        // the searches of the adjacent ids differ from batch to batch, so they aren't cached
+        assertEquals(Collections.singletonList("josh"), g.V("1").out("knows").has("age", P.gt(28)).values("name").toList());
+        assertEquals(Collections.singletonList("josh"), g.V("1").out("knows").has("age", P.gt(28)).values("name").toList());
+        assertEquals(0, queryCache.getHitCount());
+        assertEquals(0, queryCache.getMissCount());
+    }
+
+    @Test
+    public void ttlTest() throws InterruptedException {
+        g.V().has("name", "marko").toList();
+        g.V().has("name", "marko").toList();
+        assertEquals(1, queryCache.getHitCount());
+
+        Thread.sleep(600);
+        g.V().has("name", "marko").toList();
+        assertEquals(1, queryCache.getHitCount());
+        assertEquals(2, queryCache.getMissCount());
+    }
+
+    @Test
+    public void lruTest() {
+        g.V().has("name", "marko").toList();
+        g.V().has("name", "vadas").toList();
+        g.V().has("name", "marko").toList();
+        assertEquals(1, queryCache.getHitCount());
+
+        // vadas is the least recently used of the two entries
+        g.V().has("name", "josh").toList();
+        g.V().has("name", "marko").toList();
+        assertEquals(2, queryCache.getHitCount());
+        g.V().has("name", "vadas").toList();
+        assertEquals(2, queryCache.getHitCount());
+        assertEquals(4, queryCache.getMissCount());
+    }
+
+    @Test
+    public void cachedElementsTest() {
+        Vertex marko = g.V().has("name", "marko").toList().get(0);
+        List<Vertex> cached = g.V().has("name", "marko").toList();
+        List<Vertex> cachedAgain = g.V().has("name", "marko").toList();
+        assertEquals(2, queryCache.getHitCount());
+
+        assertNotSame(marko, cached.get(0));
+        assertNotSame(cached.get(0), cachedAgain.get(0));
+        assertEquals(marko, cached.get(0));
+        assertEquals(29, (int) cached.get(0).value("age"));
+        assertEquals("person", cachedAgain.get(0).label());
+
+        // a property written to one of them doesn't show up in the others, and the write drops the entry
+        cached.get(0).property("age", 30);
+        assertEquals(29, (int) cachedAgain.get(0).value("age"));
+        assertEquals(30, (int) g.V().has("name", "marko").next().value("age"));
+    }
+}
@@ -0,0 +1,81 @@
+package org.elasticgremlin.elastic;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.tinkerpop.gremlin.LoadGraphWith;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.ElasticGraphGraphProvider;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class RefreshTests {
+
+    ElasticGraphGraphProvider elasticGraphProvider;
+    Graph graph;
+    GraphTraversalSource g;
+    Client client;
+
+    @Before
+    public void startUp() throws InstantiationException, IOException, ExecutionException, InterruptedException {
+        elasticGraphProvider = new ElasticGraphGraphProvider();
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "refreshTests", LoadGraphWith.GraphData.MODERN);
+        this.graph = elasticGraphProvider.openTestGraph(configuration);
+        this.g = graph.traversal();
+        this.client = elasticGraphProvider.getClient();
+        // only the graph refreshes the index, so the refresh count (summed over the shards) tells when it did
+        client.admin().indices().prepareUpdateSettings("testgraph").setSettings(Settings.settingsBuilder().put("index.refresh_interval", -1).build()).get();
+    }
+
+    @Test
+    public void refreshAfterWriteTest() {
+        long refreshes = refreshes();
+        assertEquals(0L, (long) g.V().count().next());
+        assertEquals(refreshes, refreshes());
+
+        graph.addVertex(T.label, "test", T.id, "1", "name", "marko");
+        assertEquals(1L, (long) g.V().count().next());
+        assertTrue(refreshes() > refreshes);
+        refreshes = refreshes();
+
+        // reads that follow no write don't refresh again
+        assertEquals("marko", g.V().has("name", "marko").values("name").next());
+        assertEquals(1, g.V().toList().size());
+        assertEquals(refreshes, refreshes());
+
+        graph.addVertex(T.label, "test", T.id, "2", "name", "josh");
+        assertEquals(1L, (long) g.V().has("name", "josh").count().next());
+        assertTrue(refreshes() > refreshes);
+        refreshes = refreshes();
+        assertEquals(2, g.V().has("name").toList().size());
+        assertEquals(refreshes, refreshes());
+    }
+
+    @Test
+    public void refreshIntervalTest() throws Exception {
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "refreshIntervalTests", LoadGraphWith.GraphData.MODERN);
+        configuration.setProperty("elasticsearch.refresh.interval", "1h");
+        Graph intervalGraph = elasticGraphProvider.openTestGraph(configuration);
+        long refreshes = refreshes();
+
+        intervalGraph.addVertex(T.label, "test", T.id, "1");
+        assertEquals(1L, (long) intervalGraph.traversal().V().count().next());
+        assertTrue(refreshes() > refreshes);
+        refreshes = refreshes();
+
+        // within the interval the reads don't refresh, and miss the writes made meanwhile
+        intervalGraph.addVertex(T.label, "test", T.id, "2");
+        assertEquals(1L, (long) intervalGraph.traversal().V().count().next());
+        assertEquals(refreshes, refreshes());
+        intervalGraph.close();
+    }
+
+    private long refreshes() {
+        return client.admin().indices().prepareStats("testgraph").setRefresh(true).get().getTotal().getRefresh().getTotal();
+    }
+}
@@ -0,0 +1,305 @@
+package org.elasticgremlin.elastic;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.tinkerpop.gremlin.LoadGraphWith;
+import org.apache.tinkerpop.gremlin.process.traversal.Order;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.process.traversal.util.MutableMetrics;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.ElasticGraphGraphProvider;
+import org.elasticgremlin.queryhandler.Predicates;
+import org.elasticgremlin.queryhandler.elasticsearch.helpers.*;
+import org.elasticgremlin.structure.ElasticGraph;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.javatuples.Pair;
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class ScrollTests {
+
+    Graph graph;
+    GraphTraversalSource g;
+    Client client;
+
+    @Before
+    public void startUp() throws InstantiationException, IOException, ExecutionException, InterruptedException {
+        ElasticGraphGraphProvider elasticGraphProvider = new ElasticGraphGraphProvider();
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "scrollTests", LoadGraphWith.GraphData.MODERN);
+        configuration.setProperty("elasticsearch.scroll.parallel", true);
+        configuration.setProperty("elasticsearch.scrollSize", 2);
+        this.graph = elasticGraphProvider.openTestGraph(configuration);
+        this.g = graph.traversal();
+        this.client = elasticGraphProvider.getClient();
+    }
+
+    @After
+    public void tearDown() {
+        client.admin().indices().prepareDelete("scroll-a", "scroll-b").setIndicesOptions(IndicesOptions.lenientExpandOpen()).get();
+    }
+
+    @Test
+    public void parallelScanTest() {
+        Set<Object> ids = new HashSet<>();
+        for (int i = 0; i < 15; i++) ids.add(graph.addVertex(T.label, "test", "n", i).id());
+
+        assertEquals(ids, new HashSet<>(g.V().id().toList()));
+        assertEquals(15, g.V().toList().size());
+        assertEquals(5, g.V().has("n", P.gte(10)).toList().size());
+    }
+
+    @Test
+    public void aliasShardsTest() throws IOException {
+        createIndex("scroll-a", 2);
+        createIndex("scroll-b", 3);
+        client.admin().indices().prepareAliases().addAlias(new String[]{"scroll-a", "scroll-b"}, "scroll-alias").get();
+        for (int i = 0; i < 7; i++)
+            client.prepareIndex(i < 3 ? "scroll-a" : "scroll-b", "test", String.valueOf(i)).setSource("n", i).setRefresh(true).get();
+
+        List<Pair<String, Integer>> shards = ElasticHelper.getShards("scroll-alias", client);
+        assertEquals(5, shards.size());
+        assertEquals(new HashSet<>(Arrays.asList("scroll-a", "scroll-b")), new HashSet<>(Arrays.asList(shards.get(0).getValue0(), shards.get(4).getValue0())));
+        assertEquals(5, ElasticHelper.getShards("scroll-*", client).size());
+
+        Set<String> ids = new HashSet<>();
+        try (ShardScanIterator<String> iterator = scan("scroll-alias", shards)) {
+            iterator.forEachRemaining(ids::add);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("0", "1", "2", "3", "4", "5", "6")), ids);
+    }
+
+    @Test
+    public void unresolvedShardsTest() {
+        try {
+            ElasticHelper.getShards("scroll-nothing-*", client);
+            fail("a pattern without indices resolves to no shards");
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage().contains("scroll-nothing-*"));
+        }
+    }
+
+    @Test
+    public void closeClearsScrollsTest() throws IOException, InterruptedException {
+        for (int i = 0; i < 15; i++) graph.addVertex(T.label, "test", "n", i);
+        g.V().toList();
+
+        QueryIterator<String> iterator = query(new ScrollSettings(2, 3, false, TimeValue.timeValueMinutes(1)));
+        iterator.next();
+        assertTrue(openContexts() > 0);
+        // the prefetched pages are still in flight
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        assertNoOpenContexts();
+
+        ShardScanIterator<String> scan = scan("testgraph", ElasticHelper.getShards("testgraph", client));
+        scan.next();
+        scan.close();
+        assertFalse(scan.hasNext());
+        assertNoOpenContexts();
+    }
+
+    @Test
+    public void abandonedScrollsTest() throws InterruptedException {
+        for (int i = 0; i < 15; i++) graph.addVertex(T.label, "test", "n", i);
+        g.V().toList();
+        long open = ScrollContexts.getOpenCount();
+
+        abandon();
+        assertEquals(open + 1, ScrollContexts.getOpenCount());
+        for (int i = 0; i < 10 && ScrollContexts.getOpenCount() > open; i++) {
+            System.gc();
+            Thread.sleep(100);
+            // the contexts of collected iterators are cleared when the next scroll opens
+            query(new ScrollSettings(2, 0, false, TimeValue.timeValueMinutes(1))).close();
+        }
+        assertEquals(open, ScrollContexts.getOpenCount());
+        assertNoOpenContexts();
+    }
+
+    @Test
+    public void prefetchTest() {
+        for (int i = 0; i < 15; i++) graph.addVertex(T.label, "test", T.id, String.format("%02d", i), "n", i);
+        g.V().toList();
+
+        // the pages requested ahead give the same hits as the pages scrolled on demand
+        List<String> prefetched = toList(query(new ScrollSettings(2, 3, false, TimeValue.timeValueMinutes(1))));
+        assertEquals(15, prefetched.size());
+        assertEquals(new HashSet<>(toList(query(new ScrollSettings(2, 0, false, TimeValue.timeValueMinutes(1))))), new HashSet<>(prefetched));
+
+        List<String> sorted = toList(sortedQuery(new ScrollSettings(2, 3, false, TimeValue.timeValueMinutes(1)), 0, Long.MAX_VALUE));
+        assertEquals(toList(sortedQuery(new ScrollSettings(2, 0, false, TimeValue.timeValueMinutes(1)), 0, Long.MAX_VALUE)), sorted);
+        assertEquals("14", sorted.get(0));
+        assertEquals("00", sorted.get(14));
+
+        assertEquals(5, toList(new QueryIterator<>(QueryBuilders.matchAllQuery(), 0, new ScrollSettings(2, 3, false, TimeValue.timeValueMinutes(1)),
+                5, client, ScrollTests::ids, new IndexRefresher(client, null, false, 0), new TimingAccessor(), "testgraph")).size());
+        assertEquals(sorted.subList(3, 8), toList(sortedQuery(new ScrollSettings(2, 3, false, TimeValue.timeValueMinutes(1)), 3, 5)));
+    }
+
+    @Test
+    public void adaptivePageSizeTest() {
+        for (int i = 0; i < 15; i++) graph.addVertex(T.label, "test", "n", i);
+        g.V().toList();
+        SearchResponse response = client.prepareSearch("testgraph").setSize(15).get();
+        long sourceBytes = 0;
+        for (SearchHit hit : response.getHits().getHits()) sourceBytes += hit.sourceRef().length();
+        double bytesPerHit = (double) sourceBytes / response.getHits().getHits().length;
+
+        ScrollSettings fixed = new ScrollSettings(3, 0, false, TimeValue.timeValueMinutes(1));
+        fixed.observe(response);
+        assertFalse(fixed.isAdaptive());
+        assertEquals(3, fixed.getPageSize());
+
+        // the latency target is out of reach, so the pages are sized by their bytes only
+        ScrollSettings small = adaptive(1);
+        assertTrue(small.isAdaptive());
+        assertEquals(10, small.getPageSize());
+        small.observe(response);
+        assertEquals(2, small.getPageSize());
+
+        ScrollSettings large = adaptive(Long.MAX_VALUE / 2);
+        large.observe(response);
+        assertEquals(50, large.getPageSize());
+
+        ScrollSettings middle = adaptive((long) (bytesPerHit * 20.5));
+        middle.observe(response);
+        assertEquals(20, middle.getPageSize());
+        middle.observe(response);
+        assertEquals(20, middle.getPageSize());
+
+        // the iterator feeds its responses to the settings, which adapt the pages of the next searches
+        ScrollSettings scrolled = adaptive(1);
+        assertEquals(15, toList(query(scrolled)).size());
+        assertEquals(2, scrolled.getPageSize());
+    }
+
+    @Test
+    public void lazyPageTest() {
+        for (int i = 0; i < 5; i++) graph.addVertex(T.label, "test", "n", i);
+        g.V().toList();
+        SearchResponse response = client.prepareSearch("testgraph").setSize(5).get();
+
+        // each hit is converted the first time it's read, and only once
+        List<SearchHit> converted = new ArrayList<>();
+        LazyPage<String> page = new LazyPage<>(Arrays.asList(response.getHits().getHits()).iterator(), (hit, siblings) -> {
+            converted.add(hit);
+            return hit.getId();
+        });
+        assertEquals(5, page.size());
+        assertEquals(0, converted.size());
+        Iterator<String> iterator = page.iterator();
+        String first = iterator.next();
+        assertEquals(1, converted.size());
+        assertSame(first, page.get(0));
+        page.get(3);
+        assertEquals(2, converted.size());
+        page.convertAll();
+        assertEquals(5, converted.size());
+        assertEquals(5, new HashSet<>(converted).size());
+
+        List<String> rest = new ArrayList<>();
+        iterator.forEachRemaining(rest::add);
+        assertEquals(5, converted.size());
+        assertEquals(page.subList(1, 5), rest);
+    }
+
+    @Test
+    public void lazyFetchPerPageTest() {
+        for (int i = 0; i < 5; i++) graph.addVertex(T.label, "test", T.id, String.valueOf(i), "n", i, "m", i * 10);
+        g.V().toList();
+
+        // a sorted search pages by two without a parallel scan, the vertices hold only n
+        Predicates predicates = new Predicates();
+        predicates.hasContainers.add(new HasContainer("n", P.gte(0)));
+        predicates.includes.add("n");
+        predicates.orders.add(new Pair<>("n", Order.incr));
+        MutableMetrics metrics = new MutableMetrics("lazy", "lazy");
+        MutableMetrics previous = ElasticMetrics.enter(metrics);
+        List<Integer> values = new ArrayList<>();
+        try {
+            Iterator<? extends Vertex> vertices = ((ElasticGraph) graph).getQueryHandler().vertices(predicates);
+            // the first vertex of each page fetches the rest of the whole page's sources
+            vertices.forEachRemaining(vertex -> values.add(vertex.value("m")));
+        }
+        finally {
+            ElasticMetrics.exit(previous);
+        }
+        assertEquals(Arrays.asList(0, 10, 20, 30, 40), values);
+        assertEquals(3L, (long) metrics.getCount(ElasticMetrics.MULTI_GETS));
+    }
+
+    private ScrollSettings adaptive(long targetBytes) {
+        return new ScrollSettings(10, 2, 50, targetBytes, Long.MAX_VALUE, 0, false, TimeValue.timeValueMinutes(1));
+    }
+
+    private QueryIterator<String> sortedQuery(ScrollSettings settings, long startFrom, long maxSize) {
+        return new QueryIterator<>(QueryBuilders.matchAllQuery(), sortByN(), null, startFrom, settings, maxSize, Long.MAX_VALUE, client,
+                ScrollTests::ids, new IndexRefresher(client, null, false, 0), new TimingAccessor(), "testgraph");
+    }
+
+    private static List<Pair<String, Order>> sortByN() {
+        return Collections.singletonList(new Pair<>("n", Order.decr));
+    }
+
+    private static List<String> toList(QueryIterator<String> iterator) {
+        List<String> ids = new ArrayList<>();
+        try {
+            iterator.forEachRemaining(ids::add);
+        }
+        finally {
+            iterator.close();
+        }
+        return ids;
+    }
+
+    private void abandon() {
+        QueryIterator<String> iterator = query(new ScrollSettings(2, 2, false, TimeValue.timeValueMinutes(1)));
+        iterator.next();
+    }
+
+    private QueryIterator<String> query(ScrollSettings settings) {
+        return new QueryIterator<>(QueryBuilders.matchAllQuery(), 0, settings, Long.MAX_VALUE, client, ScrollTests::ids,
+                new IndexRefresher(client, null, false, 0), new TimingAccessor(), "testgraph");
+    }
+
+    private long openContexts() {
+        return client.admin().indices().prepareStats("testgraph").setSearch(true).get().getTotal().getSearch().getOpenContexts();
+    }
+
+    private void assertNoOpenContexts() throws InterruptedException {
+        // the scrolls are cleared without waiting for the response
+        for (int i = 0; i < 50 && openContexts() > 0; i++) Thread.sleep(100);
+        assertEquals(0L, openContexts());
+    }
+
+    private void createIndex(String index, int shards) {
+        client.admin().indices().prepareCreate(index).setSettings(Settings.settingsBuilder()
+                .put("index.number_of_shards", shards).put("index.number_of_replicas", 0).build()).get();
+        client.admin().cluster().prepareHealth(index).setWaitForYellowStatus().get();
+    }
+
+    private ShardScanIterator<String> scan(String index, List<Pair<String, Integer>> shards) {
+        return new ShardScanIterator<>(QueryBuilders.matchAllQuery(), null, new ScrollSettings(2, 0, false, TimeValue.timeValueMinutes(1)), client,
+                ScrollTests::ids,
+                new IndexRefresher(client, null, false, 0), new TimingAccessor(), index, shards);
+    }
+
+    private static Iterator<String> ids(Iterator<SearchHit> hits) {
+        List<String> ids = new ArrayList<>();
+        hits.forEachRemaining(hit -> ids.add(hit.getId()));
+        return ids.iterator();
+    }
+}
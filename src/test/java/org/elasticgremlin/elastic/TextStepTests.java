@@ -0,0 +1,132 @@
+package org.elasticgremlin.elastic;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.tinkerpop.gremlin.LoadGraphWith;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.dsl.graph.GraphTraversalSource;
+import org.apache.tinkerpop.gremlin.structure.*;
+import org.elasticgremlin.ElasticGraphGraphProvider;
+import org.elasticgremlin.queryhandler.elasticsearch.Text;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.junit.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.*;
+
+public class TextStepTests {
+
+    String INDEX_NAME = "testgraph";
+    String DOCUMENT_TYPE = "text_item";
+    Graph graph;
+
+    @Before
+    public void startUp() throws InstantiationException, IOException, ExecutionException, InterruptedException {
+        ElasticGraphGraphProvider elasticGraphProvider = new ElasticGraphGraphProvider();
+        final Configuration configuration = elasticGraphProvider.newGraphConfiguration("testGraph", this.getClass(), "textTests", LoadGraphWith.GraphData.MODERN);
+        this.graph = elasticGraphProvider.openTestGraph(configuration);
+
+        createTextMapping(elasticGraphProvider.getClient(), DOCUMENT_TYPE);
+        graph.addVertex(T.label, DOCUMENT_TYPE, T.id, "1", "text", "The quick brown fox jumps");
+        graph.addVertex(T.label, DOCUMENT_TYPE, T.id, "2", "text", "Lazy dogs sleep, quick cats run");
+        graph.addVertex(T.label, DOCUMENT_TYPE, T.id, "3", "text", "brown bread");
+    }
+
+    @Test
+    public void textContainsTest() {
+        assertEquals(Arrays.asList("1"), ids(Text.textContains("fox QUICK")));
+    }
+
+    @Test
+    public void textPrefixTest() {
+        assertEquals(Arrays.asList("1", "3"), ids(Text.textPrefix("bro")));
+    }
+
+    @Test
+    public void textRegexTest() {
+        assertEquals(Arrays.asList("1", "2"), ids(Text.textRegex("qu.*k")));
+    }
+
+    @Test
+    public void textFuzzyTest() {
+        assertEquals(Arrays.asList("2"), ids(Text.textFuzzy("dgs")));
+        assertEquals(Arrays.asList("1", "3"), ids(Text.textFuzzy("brwn")));
+    }
+
+    @Test
+    public void textPhraseTest() {
+        assertEquals(Arrays.asList("1"), ids(Text.textPhrase("quick brown")));
+        assertEquals(Collections.emptyList(), ids(Text.textPhrase("brown quick")));
+    }
+
+    @Test
+    public void inMemoryTest() {
+        assertTrue(Text.textContains("fox quick").test("The quick brown fox"));
+        assertTrue(Text.textPrefix("bro").test("The quick brown fox"));
+        assertTrue(Text.textFuzzy("brwn").test("brown bread"));
+        assertFalse(Text.textFuzzy("dgs").test("brown bread"));
+        assertFalse(Text.textPhrase("brown quick").test("The quick brown fox"));
+    }
+
+    @Test
+    public void defaultMappingTest() {
+        // the index's default keyword analyzer keeps the whole text as one term, so the predicates are tested in memory
+        graph.addVertex(T.label, "plain_item", T.id, "11", "body", "The quick brown fox jumps");
+        graph.addVertex(T.label, "plain_item", T.id, "12", "body", "Lazy dogs sleep, quick cats run");
+        graph.addVertex(T.label, "plain_item", T.id, "13", "body", "brown bread");
+
+        assertEquals(Arrays.asList("11"), ids("body", Text.textContains("fox QUICK")));
+        assertEquals(Arrays.asList("11", "13"), ids("body", Text.textPrefix("bro")));
+        assertEquals(Arrays.asList("11", "12"), ids("body", Text.textRegex("qu.*k")));
+        assertEquals(Arrays.asList("12"), ids("body", Text.textFuzzy("dgs")));
+        assertEquals(Arrays.asList("11"), ids("body", Text.textPhrase("quick brown")));
+        assertEquals(Collections.emptyList(), ids("body", Text.textPhrase("brown quick")));
+
+        assertTrue(searched(graph.traversal().V().has("text", Text.textContains("fox"))));
+        assertFalse(searched(graph.traversal().V().has("body", Text.textContains("fox"))));
+        assertFalse(searched(graph.traversal().V().has("missing", Text.textContains("fox"))));
+    }
+
+    private List<String> ids(P<String> predicate) {
+        return ids("text", predicate);
+    }
+
+    private List<String> ids(String key, P<String> predicate) {
+        GraphTraversalSource g = graph.traversal();
+        List<String> ids = new ArrayList<>();
+        g.V().has(key, predicate).id().forEachRemaining(id -> ids.add(id.toString()));
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private boolean searched(Traversal<?, ?> traversal) {
+        traversal.hasNext();
+        return !traversal.toString().contains("HasStep");
+    }
+
+    private void createTextMapping(Client client, String documentType) throws IOException {
+        final XContentBuilder mappingBuilder =
+                jsonBuilder()
+                        .startObject()
+                        .startObject(documentType)
+                        .startObject("properties")
+                        .startObject("text")
+                        .field("type", "string")
+                        .field("analyzer", "standard")
+                        .endObject()
+                        .endObject()
+                        .endObject()
+                        .endObject();
+
+        client.admin().indices()
+                .preparePutMapping(INDEX_NAME)
+                .setType(documentType)
+                .setSource(mappingBuilder)
+                .execute().actionGet();
+    }
+}
@@ -8,10 +8,13 @@ import org.elasticgremlin.queryhandler.elasticsearch.helpers.*;
 import org.elasticgremlin.queryhandler.elasticsearch.stardoc.*;
 import org.elasticgremlin.queryhandler.elasticsearch.vertexdoc.DocVertexHandler;
 import org.elasticgremlin.structure.*;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.client.Client;
+import org.javatuples.Pair;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class ModernGraphQueryHandler implements QueryHandler {
 
@@ -28,16 +31,19 @@ public class ModernGraphQueryHandler implements QueryHandler {
     @Override
     public void init(ElasticGraph graph, Configuration configuration) throws IOException {
         String indexName = configuration.getString("elasticsearch.index.name", "graph");
-        boolean refresh = configuration.getBoolean("elasticsearch.refresh", false);
-        int scrollSize = configuration.getInt("elasticsearch.scrollSize", 100);
 
         this.client = ElasticClientFactory.create(configuration);
         ElasticHelper.createIndex(indexName, client);
+        List<Pair<String, Integer>> indexShards = ElasticHelper.getShards(indexName, client);
 
         timing = new TimingAccessor();
         elasticMutations = new ElasticMutations(false, client, timing);
-        this.docVertexHandler = new DocVertexHandler(graph, client, elasticMutations, indexName, scrollSize, refresh, timing);
-        this.starHandler = new StarHandler(graph, client, elasticMutations, indexName, scrollSize, refresh, timing,
+        IndexRefresher refresher = new IndexRefresher(configuration, client, elasticMutations);
+        QueryCache queryCache = new QueryCache(configuration, elasticMutations);
+        this.docVertexHandler = new DocVertexHandler(graph, client, elasticMutations, indexName, indexShards,
+                new ScrollSettings(configuration, "vertex", 100), refresher, queryCache, timing);
+        this.starHandler = new StarHandler(graph, client, elasticMutations, indexName,
+                new ScrollSettings(configuration, "star", 100), refresher, queryCache, timing,
                 new BasicEdgeMapping("knows", "person", Direction.OUT, "knows-fk"), new BasicEdgeMapping("created", "software", Direction.OUT, "created-fk"));
 
         this.vertexHandlers = new HashMap<>();
@@ -48,6 +54,9 @@ public class ModernGraphQueryHandler implements QueryHandler {
     @Override
     public void commit() { elasticMutations.commit(); }
 
+    @Override
+    public CompletableFuture<List<BulkItemResponse>> commitAsync() { return elasticMutations.commitAsync(); }
+
     @Override
     public Iterator<Edge> edges() {
         return starHandler.edges();
@@ -134,11 +143,15 @@ public class ModernGraphQueryHandler implements QueryHandler {
             for (HasContainer has : predicates.hasContainers) {
                 passed = passed && has.test(vertex);
             }
+            for (BoolContainer boolContainer : predicates.boolContainers) {
+                passed = passed && boolContainer.test(vertex);
+            }
             if (passed) {
                 passedVertices.add(vertex);
             }
         });
-        return passedVertices.iterator();
+        if (!predicates.orders.isEmpty()) passedVertices.sort(ElasticHelper.createComparator(predicates.orders));
+        return passedVertices.stream().skip(predicates.limitLow).limit(predicates.limitHigh - predicates.limitLow).iterator();
     }
 
     private String extractLabel(ArrayList<HasContainer> hasContainers) {